@@ -0,0 +1,274 @@
+/******************************************************************
+ *
+ *   Binary fuse filter, a static approximate set built once from a
+ *   fixed collection of keys.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.util.Arrays;
+import java.util.Collection;
+
+
+/**
+ * Binary Fuse Filters
+ *
+ * A Bloom filter can be added to at any time, and pays for that: it needs
+ * about 1.44 times the bits of the theoretical minimum for its false
+ * positive rate, and contains() may read up to 'k' bits in different
+ * places. Many filters are built once from a fixed set of keys and then
+ * only queried. A binary fuse filter (Graf and Lemire, "Binary Fuse
+ * Filters: Fast and Smaller Than Xor Filters") makes that trade: it must
+ * be built from all of its keys at once, and can't be added to later,
+ * but needs about 9 bits per key for a false positive rate of 1/256
+ * (0.39%) and contains() reads exactly 3 bytes.
+ *
+ * The filter is an array of 8-bit fingerprints. Each key 'x' has three
+ * positions h0(x), h1(x) and h2(x) in the array, and a fingerprint fp(x),
+ * and the array is filled so that
+ *
+ *      fp(x) = F[h0(x)] XOR F[h1(x)] XOR F[h2(x)]
+ *
+ * holds for every key. contains() checks exactly that. For any other key
+ * the XOR of the three bytes is effectively random, and matches its
+ * fingerprint with probability 1/256.
+ *
+ * Building the array is done by "peeling": a position that only one key
+ * maps to can always be set last, to whatever value makes that key's
+ * equation hold, so
+ *    1) repeatedly take a position used by a single key, put the key on
+ *       a stack, and remove the key from its other two positions (which
+ *       may leave them with a single key in turn);
+ *    2) if every key ends up on the stack, set the positions in reverse
+ *       stack order. Otherwise try again with a new hash seed.
+ *
+ * The array is split into segments, and the three positions of a key lie
+ * in three consecutive segments. That "spatial coupling" is what lets
+ * peeling succeed with an array only about 1.125 times the number of keys
+ * (plain xor filters need 1.23 times).
+ *
+ * Keys are hashed with BloomFilter.hashCode, so a String, its UTF-16LE
+ * bytes, and so on give the same result as in a BloomFilter. The hash
+ * code is then mixed with the seed.
+ */
+
+class BinaryFuseFilter {
+    private static final int ARITY = 3;
+    private static final int MAX_ATTEMPTS = 100;
+
+    private final byte[] fingerprints;
+    private final long seed;
+    private final int segmentLength;
+    private final int segmentLengthMask;
+    private final int segmentCountLength;
+    private final int size;
+
+
+    private BinaryFuseFilter(int size, long seed, int segmentLength,
+                             int segmentCountLength, byte[] fingerprints) {
+        this.size = size;
+        this.seed = seed;
+        this.segmentLength = segmentLength;
+        this.segmentLengthMask = segmentLength - 1;
+        this.segmentCountLength = segmentCountLength;
+        this.fingerprints = fingerprints;
+    }
+
+    public int size() { return size; }
+    public long noBits() { return 8L * fingerprints.length; }
+    public double bitsPerKey() { return size == 0 ? 0 : (double) noBits() / size; }
+
+
+    /*
+     * Method build
+     *
+     * Builds a filter holding exactly the passed keys. Duplicate keys are
+     * allowed, and are only stored once.
+     *
+     * @param keys - the values of the set
+     * @return - the new filter
+     */
+
+    public static BinaryFuseFilter build(Collection<? extends CharSequence> keys) {
+        long[] hashes = new long[keys.size()];
+        int i = 0;
+        for (CharSequence s : keys)
+            hashes[i++] = BloomFilter.hashCode(s, 0);
+        return fromHashCodes(hashes);
+    }
+
+    public static BinaryFuseFilter build(long[] keys) {
+        long[] hashes = new long[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            hashes[i] = BloomFilter.hashCode(keys[i], 0);
+        return fromHashCodes(hashes);
+    }
+
+    private static BinaryFuseFilter fromHashCodes(long[] hashCodes) {
+        // Keys with the same hash code would cancel each other out in the
+        // peeling below, so keep just one of each
+        Arrays.sort(hashCodes);
+        int size = 0;
+        for (int i = 0; i < hashCodes.length; i++) {
+            if (i == 0 || hashCodes[i] != hashCodes[i - 1])
+                hashCodes[size++] = hashCodes[i];
+        }
+
+        // Array layout, as in the reference implementation
+        int segmentLength = size == 0 ? 4 : Math.min(1 << 18,
+                1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25));
+        double sizeFactor = size <= 1 ? 0
+                : Math.max(1.125, 0.875 + 0.25 * Math.log(1000000) / Math.log(size));
+        int capacity = (int) Math.round(size * sizeFactor);
+        int segmentCount = Math.max(1,
+                (capacity + segmentLength - 1) / segmentLength - (ARITY - 1));
+        int arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+        int segmentCountLength = segmentCount * segmentLength;
+
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            BinaryFuseFilter bf = new BinaryFuseFilter(size, seed, segmentLength,
+                    segmentCountLength, new byte[arrayLength]);
+            if (bf.fill(hashCodes, size))
+                return bf;
+            seed = mix(seed + attempt);
+        }
+        throw new IllegalStateException("Could not build binary fuse filter");
+    }
+
+
+    /*
+     * Method fill
+     *
+     * Peels the keys as described above, and sets the fingerprints. For
+     * every position, 'counts' holds the number of keys mapped to it
+     * (times 4) XORed with which of h0, h1 or h2 got them there, and
+     * 'xors' holds the XOR of their hashes; once a single key is left
+     * these are exactly that key's hash and the index of the position.
+     *
+     * @return - false if peeling got stuck, and another seed is needed
+     */
+
+    private boolean fill(long[] hashCodes, int size) {
+        int length = fingerprints.length;
+        int[] counts = new int[length];
+        long[] xors = new long[length];
+        int[] pos = new int[ARITY];
+        for (int i = 0; i < size; i++) {
+            long h = mix(hashCodes[i] + seed);
+            positions(h, pos);
+            for (int j = 0; j < ARITY; j++) {
+                counts[pos[j]] = (counts[pos[j]] + 4) ^ j;
+                xors[pos[j]] ^= h;
+            }
+        }
+
+        int[] queue = new int[length];
+        int queued = 0;
+        for (int p = 0; p < length; p++) {
+            if ((counts[p] >> 2) == 1)
+                queue[queued++] = p;
+        }
+
+        long[] stackHash = new long[size];
+        byte[] stackIndex = new byte[size];
+        int stacked = 0;
+        while (queued > 0) {
+            int p = queue[--queued];
+            if ((counts[p] >> 2) != 1)
+                continue;
+            long h = xors[p];
+            int found = counts[p] & 3;
+            stackHash[stacked] = h;
+            stackIndex[stacked++] = (byte) found;
+            positions(h, pos);
+            for (int j = 0; j < ARITY; j++) {
+                if (j == found)
+                    continue;
+                int q = pos[j];
+                counts[q] = (counts[q] - 4) ^ j;
+                xors[q] ^= h;
+                if ((counts[q] >> 2) == 1)
+                    queue[queued++] = q;
+            }
+            counts[p] = 0;
+        }
+        if (stacked != size)
+            return false;
+
+        while (stacked > 0) {
+            long h = stackHash[--stacked];
+            int found = stackIndex[stacked];
+            positions(h, pos);
+            int fp = fingerprint(h);
+            for (int j = 0; j < ARITY; j++) {
+                if (j != found)
+                    fp ^= fingerprints[pos[j]];
+            }
+            fingerprints[pos[found]] = (byte) fp;
+        }
+        return true;
+    }
+
+
+    /*
+     * Hashing. h0 picks a position in the first 'segmentCount' segments
+     * with a multiply and shift, and h1 and h2 fall at the same offset in
+     * the next two segments, XORed with other bits of the hash so that
+     * they are independent of h0 within their segment.
+     */
+
+    private void positions(long h, int[] pos) {
+        int h0 = (int) (((h >>> 32) * segmentCountLength) >>> 32);
+        pos[0] = h0;
+        pos[1] = (h0 + segmentLength) ^ ((int) (h >>> 18) & segmentLengthMask);
+        pos[2] = (h0 + 2 * segmentLength) ^ ((int) h & segmentLengthMask);
+    }
+
+    private static int fingerprint(long h) {
+        return (int) (h ^ (h >>> 32)) & 0xFF;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+
+    /*
+     * Method contains
+     *
+     * Reads the three fingerprints of the key, and checks that their XOR
+     * is the key's fingerprint.
+     *
+     * @param boolean - false if not in set, else true for most probably in set
+     */
+
+    public boolean contains(CharSequence s) {
+        return containsHash(BloomFilter.hashCode(s, 0));
+    }
+
+    public boolean contains(byte[] b, int off, int len) {
+        return containsHash(BloomFilter.hashCode(b, off, len, 0));
+    }
+
+    public boolean contains(long key) {
+        return containsHash(BloomFilter.hashCode(key, 0));
+    }
+
+    private boolean containsHash(long hc) {
+        if (size == 0)
+            return false;
+        long h = mix(hc + seed);
+        int h0 = (int) (((h >>> 32) * segmentCountLength) >>> 32);
+        int h1 = (h0 + segmentLength) ^ ((int) (h >>> 18) & segmentLengthMask);
+        int h2 = (h0 + 2 * segmentLength) ^ ((int) h & segmentLengthMask);
+        return ((fingerprint(h) ^ fingerprints[h0] ^ fingerprints[h1]
+                ^ fingerprints[h2]) & 0xFF) == 0;
+    }
+}
@@ -7,7 +7,25 @@
  *
  ********************************************************************/
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 import java.util.Random;
 import java.util.HashSet;
 import java.util.Set;
@@ -72,7 +90,7 @@ import java.lang.Math;
  */
 
 class BloomFilter {
-    private static final int MAX_HASHES = 8;
+    static final int MAX_HASHES = 8;
     private static final long[] byteTable;
     private static final long HSTART = 0xBB40E64DA205B064L;
     private static final long HMULT = 7664345821815920749L;
@@ -126,7 +144,7 @@ class BloomFilter {
         }
     }
 
-    private long hashCode(String s, int hcNo) {
+    static long hashCode(String s, int hcNo) {
         long h = HSTART;
         final long hmult = HMULT;
         final long[] ht = byteTable;
@@ -139,9 +157,166 @@ class BloomFilter {
         return h;
     }
 
+    /*
+     * Key types other than String
+     *
+     * The hash function consumes each char as two bytes, low byte first.
+     * The overloads below hash other key types in place, without first
+     * turning them into a String, and feed the same bytes through the same
+     * function:
+     *    - a CharSequence is hashed char by char, exactly like a String
+     *      with the same chars;
+     *    - a byte[] range or the remaining bytes of a ByteBuffer are hashed
+     *      byte by byte, so the UTF-16LE encoding of a String hashes the
+     *      same as the String itself;
+     *    - a long is hashed as its 8 bytes, least significant byte first,
+     *      i.e. the same as the byte[] written by a little endian
+     *      ByteBuffer.putLong().
+     */
+
+    static long hashCode(CharSequence s, int hcNo) {
+        if (s instanceof String)
+            return hashCode((String) s, hcNo);
+        long h = HSTART;
+        final long hmult = HMULT;
+        final long[] ht = byteTable;
+        int startIx = 256 * hcNo;
+        for (int len = s.length(), i = 0; i < len; i++) {
+            char ch = s.charAt(i);
+            h = (h * hmult) ^ ht[startIx + (ch & 0xff)];
+            h = (h * hmult) ^ ht[startIx + ((ch >>> 8) & 0xff)];
+        }
+        return h;
+    }
+
+    static long hashCode(byte[] b, int off, int len, int hcNo) {
+        long h = HSTART;
+        final long hmult = HMULT;
+        final long[] ht = byteTable;
+        int startIx = 256 * hcNo;
+        for (int i = off, end = off + len; i < end; i++)
+            h = (h * hmult) ^ ht[startIx + (b[i] & 0xff)];
+        return h;
+    }
+
+    static long hashCode(ByteBuffer buf, int hcNo) {
+        long h = HSTART;
+        final long hmult = HMULT;
+        final long[] ht = byteTable;
+        int startIx = 256 * hcNo;
+        for (int i = buf.position(), end = buf.limit(); i < end; i++)
+            h = (h * hmult) ^ ht[startIx + (buf.get(i) & 0xff)];
+        return h;
+    }
+
+    static long hashCode(long key, int hcNo) {
+        long h = HSTART;
+        final long hmult = HMULT;
+        final long[] ht = byteTable;
+        int startIx = 256 * hcNo;
+        for (int i = 0; i < 64; i += 8)
+            h = (h * hmult) ^ ht[startIx + (int) ((key >>> i) & 0xff)];
+        return h;
+    }
+
+    /*
+     * Hash schemes
+     *
+     * With the PER_INDEX scheme every one of the 'k' hash codes is computed
+     * by walking the whole String again with its own row of 'byteTable', so
+     * add/contains read every key 'k' times.
+     *
+     * With the DOUBLE_HASHING scheme the String is walked once, and the 'k'
+     * hash codes are derived from that single value in the manner described
+     * by Kirsch and Mitzenmacher ("Less Hashing, Same Performance"):
+     *
+     *      hc(i) = h1 + i * h2
+     *
+     * where h1 is the first hash code and h2 is obtained by running h1
+     * through a 64-bit mixing function (the Murmur3 finalizer). Forcing h2
+     * odd makes sure that the 'k' bit indexes are distinct whenever the
+     * mask is a power of two. The false positive rate is asymptotically the
+     * same as with 'k' independent hash functions.
+     *
+     * Both schemes produce the same first bit index, but the remaining bit
+     * indexes differ, so a filter must always be queried with the scheme
+     * that it was built with. PER_INDEX is the default, keeping existing
+     * filters readable.
+     */
+
+    public enum HashScheme { PER_INDEX, DOUBLE_HASHING }
+
+    static long hashStep(long h1) {
+        long h = h1;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h | 1;
+    }
+
+    /*
+     * Hash codes of the filter's keys, from its HashStrategy. The default
+     * LCG strategy is called directly, so filters that use it pay nothing
+     * for the choice.
+     */
+
+    private long hash(CharSequence s, int hcNo) {
+        return hashing == HashStrategy.Standard.LCG
+                ? hashCode(s, hcNo) : hashing.hash(s, hcNo);
+    }
+
+    private long hash(byte[] b, int off, int len, int hcNo) {
+        return hashing == HashStrategy.Standard.LCG
+                ? hashCode(b, off, len, hcNo) : hashing.hash(b, off, len, hcNo);
+    }
+
+    private long hash(ByteBuffer buf, int hcNo) {
+        return hashing == HashStrategy.Standard.LCG
+                ? hashCode(buf, hcNo) : hashing.hash(buf, hcNo);
+    }
+
+    private long hash(long key, int hcNo) {
+        return hashing == HashStrategy.Standard.LCG
+                ? hashCode(key, hcNo) : hashing.hash(key, hcNo);
+    }
+
+    /*
+     * Bit layouts
+     *
+     * With the STANDARD layout each of the 'k' hash codes may land anywhere
+     * in the bit map, so on a large filter every probe is likely to touch a
+     * different cache line (up to 'k' cache misses per add/contains).
+     *
+     * With the BLOCKED layout the bit map is divided into 512-bit blocks,
+     * which is the size of a 64-byte cache line. The first hash code picks
+     * one block, and all 'k' bits for the element are set within that
+     * block, so a lookup touches a single cache line. The price is a
+     * slightly higher false positive rate for the same number of bits, as
+     * the elements are no longer spread perfectly evenly over the map.
+     */
+
+    public enum Layout { STANDARD, BLOCKED }
+
+    static final int LOG2_BLOCK_BITS = 9;               // 512 bits
+    static final int BLOCK_MASK = (1 << LOG2_BLOCK_BITS) - 1;
+
     private final BitSet data;          // The hash bit map
+    private final LongBuffer mapped;    // bit map of an open()ed file
+    private final long noBits;          // number of bits in the map
+    private final boolean exactSize;    // size need not be a power of two
     private final int noHashes;         // number of hashes
     private final int hashMask;         // hash mask
+    private final Layout layout;        // bit layout of the map
+    private final HashScheme scheme;    // how the 'k' hash codes are made
+    private final HashStrategy hashing; // hash function for the keys
+    private final int noBlocks;         // number of blocks (BLOCKED)
+    private final int blockMask;        // block selection mask (BLOCKED)
+    private final int probeMask;        // mask applied to each hash code
+    private long bitsSet;               // bits set, -1 until first counted
+    private long saturationBits = -1;   // bitsSet at which to notify
+    private Consumer<BloomFilter> saturationListener;
 
 
     /*
@@ -158,32 +333,263 @@ class BloomFilter {
      *      of the number of bits, so we also provide a constructor that
      *      in effect calculates the required value from a maximum number of
      *      items and a number of bits per item.
+     *
+     *   3) Both forms optionally take the bit Layout and the HashScheme
+     *      to use; when they are not given the STANDARD layout and the
+     *      PER_INDEX scheme are used. A BLOCKED filter needs at least one
+     *      full 512-bit block.
+     *
+     *   4) The longest forms also take the HashStrategy, the hash function
+     *      that turns keys into hash codes. The default is the LCG hash
+     *      described above; filters built with different strategies set
+     *      different bits, so a filter must be queried with the strategy
+     *      that it was built with.
+     *
+     *   5) Both forms round the number of bits up to a power of two, which
+     *      can nearly double the memory used, and leave the choice of bits
+     *      per item and hash codes to the caller. The create() factory
+     *      further below instead works out both from the expected number
+     *      of items and the desired false positive rate, and allocates
+     *      exactly the number of bits needed.
      */
 
     public BloomFilter(int log2noBits, int noHashes) {
+        this(log2noBits, noHashes, Layout.STANDARD);
+    }
+
+    public BloomFilter(int log2noBits, int noHashes, Layout layout) {
+        this(log2noBits, noHashes, layout, HashScheme.PER_INDEX);
+    }
+
+    public BloomFilter(int log2noBits, int noHashes, Layout layout,
+                       HashScheme scheme) {
+        this(log2noBits, noHashes, layout, scheme, HashStrategy.Standard.LCG);
+    }
+
+    public BloomFilter(int log2noBits, int noHashes, Layout layout,
+                       HashScheme scheme, HashStrategy hashing) {
+        this(bitsFor(log2noBits), false, noHashes, layout, scheme, hashing, null);
+    }
+
+    private static long bitsFor(int log2noBits) {
         if (log2noBits < 1 || log2noBits > 31)
             throw new IllegalArgumentException("Invalid number of bits");
+        return 1L << log2noBits;
+    }
+
+    private BloomFilter(long noBits, boolean exactSize, int noHashes,
+                        Layout layout, HashScheme scheme, HashStrategy hashing,
+                        LongBuffer mapped) {
         if (noHashes < 1 || noHashes > MAX_HASHES)
             throw new IllegalArgumentException("Invalid number of hashes");
+        if (layout == Layout.BLOCKED && noBits < (1 << LOG2_BLOCK_BITS))
+            throw new IllegalArgumentException("Blocked filter needs at least "
+                    + (1 << LOG2_BLOCK_BITS) + " bits");
 
-        this.data = new BitSet(1 << log2noBits);
+        this.data = mapped == null
+                ? new BitSet((int) Math.min(noBits, Integer.MAX_VALUE)) : null;
+        this.mapped = mapped;
+        this.bitsSet = mapped == null ? 0 : -1;
+        this.noBits = noBits;
+        this.exactSize = exactSize;
         this.noHashes = noHashes;
-        this.hashMask = (1 << log2noBits) - 1;
+        this.hashMask = exactSize ? 0 : (int) (noBits - 1);
+        this.layout = layout;
+        this.scheme = scheme;
+        this.hashing = Objects.requireNonNull(hashing);
+        if (layout == Layout.BLOCKED) {
+            this.noBlocks = (int) (noBits >>> LOG2_BLOCK_BITS);
+            this.blockMask = exactSize ? 0 : noBlocks - 1;
+            this.probeMask = BLOCK_MASK;
+        } else {
+            this.noBlocks = 1;
+            this.blockMask = 0;
+            this.probeMask = hashMask;
+        }
     }
 
     public BloomFilter(int noItems, int bitsPerItem, int noHashes) {
+        this(noItems, bitsPerItem, noHashes, Layout.STANDARD);
+    }
+
+    public BloomFilter(int noItems, int bitsPerItem, int noHashes, Layout layout) {
+        this(noItems, bitsPerItem, noHashes, layout, HashScheme.PER_INDEX);
+    }
+
+    public BloomFilter(int noItems, int bitsPerItem, int noHashes, Layout layout,
+                       HashScheme scheme) {
+        this(noItems, bitsPerItem, noHashes, layout, scheme, HashStrategy.Standard.LCG);
+    }
+
+    public BloomFilter(int noItems, int bitsPerItem, int noHashes, Layout layout,
+                       HashScheme scheme, HashStrategy hashing) {
+        this(log2Bits(noItems, bitsPerItem,
+                layout == Layout.BLOCKED ? LOG2_BLOCK_BITS : 4),
+                noHashes, layout, scheme, hashing);
+    }
+
+    private static int log2Bits(int noItems, int bitsPerItem, int minLogBits) {
         int bitsRequired = noItems * bitsPerItem;
         if (bitsRequired >= Integer.MAX_VALUE) {
             throw new IllegalArgumentException("Bloom filter would be too big");
         }
-        int logBits = 4;
+        int logBits = minLogBits;
         while ((1 << logBits) < bitsRequired)
             logBits++;
-        if (noHashes < 1 || noHashes > MAX_HASHES)
-            throw new IllegalArgumentException("Invalid number of hashes");
-        this.data = new BitSet(1 << logBits);
-        this.noHashes = noHashes;
-        this.hashMask = (1 << logBits) - 1;
+        return logBits;
+    }
+
+    public Layout layout() { return layout; }
+    public HashScheme scheme() { return scheme; }
+    public HashStrategy hashing() { return hashing; }
+    public long noBits() { return noBits; }
+    public int noHashes() { return noHashes; }
+
+
+    /*
+     * Method create
+     *
+     * Creates a filter sized for 'expectedItems' items at a false positive
+     * rate of 'fpp'. For 'n' items, the number of bits 'm' and hash codes
+     * 'k' that minimise the memory needed for a rate 'p' are:
+     *
+     *      m = -n * ln(p) / (ln 2)^2        k = (m / n) * ln 2
+     *
+     * 'k' has to be a whole number, and is capped at 8 hash codes. Once
+     * it is chosen, 'm' is solved from the expected false positive rate
+     * for that 'k', p = (1 - e^(-k*n/m))^k, so that rounding 'k' never
+     * leaves the filter short of bits for the rate asked for.
+     *
+     * Exactly 'm' bits are allocated (rounded up to whole 512-bit blocks
+     * for the BLOCKED layout), rather than the next power of two. Bit
+     * indexes can then no longer be taken by masking the hash code, so the
+     * upper 32 bits of the hash code 'h' are mapped onto [0, m) with a
+     * multiply and shift (Lemire, "A fast alternative to the modulo
+     * reduction"):
+     *
+     *      index = (h32 * m) >>> 32
+     *
+     * which is as cheap as a mask, and much cheaper than a division. With
+     * the BLOCKED layout the same reduction picks the block, and bits
+     * within the block are still picked by masking.
+     *
+     * @param expectedItems - the number of items the filter will hold
+     * @param fpp - the desired false positive rate, between 0 and 1
+     * @return - the new filter
+     */
+
+    public static BloomFilter create(long expectedItems, double fpp) {
+        return create(expectedItems, fpp, Layout.STANDARD, HashScheme.PER_INDEX);
+    }
+
+    public static BloomFilter create(long expectedItems, double fpp,
+                                     Layout layout, HashScheme scheme) {
+        return create(expectedItems, fpp, layout, scheme, HashStrategy.Standard.LCG);
+    }
+
+    public static BloomFilter create(long expectedItems, double fpp,
+                                     Layout layout, HashScheme scheme,
+                                     HashStrategy hashing) {
+        if (expectedItems < 1)
+            throw new IllegalArgumentException("Invalid number of items");
+        if (!(fpp > 0 && fpp < 1))
+            throw new IllegalArgumentException("Invalid false positive rate");
+
+        double ln2 = Math.log(2);
+        double bits = -expectedItems * Math.log(fpp) / (ln2 * ln2);
+        int noHashes = (int) Math.round(bits / expectedItems * ln2);
+        noHashes = Math.max(1, Math.min(MAX_HASHES, noHashes));
+        bits = -noHashes * expectedItems
+                / Math.log(1 - Math.pow(fpp, 1.0 / noHashes));
+
+        long noBits = Math.max(1, (long) Math.ceil(bits));
+        if (layout == Layout.BLOCKED)
+            noBits = (noBits + BLOCK_MASK) & ~(long) BLOCK_MASK;
+        if (noBits > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bloom filter would be too big");
+        return new BloomFilter(noBits, true, noHashes, layout, scheme, hashing,
+                null);
+    }
+
+
+    /*
+     * Method blockBase
+     *
+     * Returns the index of the first bit of the block that all bits of an
+     * element are placed in. The block is picked using the upper half of
+     * the first hash code, as its lower bits are already used to pick the
+     * first bit within the block. With the STANDARD layout the whole map
+     * is one "block" starting at bit 0.
+     *
+     * @param hc0 - the first hash code of the element
+     * @return - the bit index the element's probes are relative to
+     */
+
+    private int blockBase(long hc0) {
+        if (exactSize)
+            return (int) (((hc0 >>> 32) * noBlocks) >>> 32) << LOG2_BLOCK_BITS;
+        return ((int) (hc0 >>> 32) & blockMask) << LOG2_BLOCK_BITS;
+    }
+
+
+    /*
+     * Method bitNo
+     *
+     * Returns the bit index for one hash code of an element, relative to
+     * the element's block (see blockBase).
+     *
+     * @param base - the bit index of the element's block
+     * @param hc - the hash code
+     * @return - the bit index in the map
+     */
+
+    private int bitNo(int base, long hc) {
+        if (exactSize && layout == Layout.STANDARD)
+            return (int) (((hc >>> 32) * noBits) >>> 32);
+        return base + ((int) (hc) & this.probeMask);
+    }
+
+
+    /*
+     * Bit map access
+     *
+     * A filter either owns its bit map in a BitSet, or reads it straight
+     * from a memory mapped file when it was opened with open(), in which
+     * case it is read-only.
+     */
+
+    private boolean getBit(int bitNo) {
+        if (mapped != null)
+            return (mapped.get(bitNo >>> 6) & (1L << bitNo)) != 0;
+        return data.get(bitNo);
+    }
+
+    private void setBit(int bitNo) {
+        if (data == null)
+            throw new UnsupportedOperationException("Bloom filter is read-only");
+        if (!data.get(bitNo)) {
+            data.set(bitNo);
+            if (++bitsSet == saturationBits)
+                saturationListener.accept(this);
+        }
+    }
+
+    public boolean isReadOnly() { return data == null; }
+
+
+    /*
+     * Method clear
+     *
+     * Removes every element, leaving the filter as it was when it was
+     * created. The bit map is kept, so a filter can be reused without
+     * allocating a new one.
+     */
+
+    public void clear() {
+        if (data == null)
+            throw new UnsupportedOperationException("Bloom filter is read-only");
+        data.clear();
+        bitsSet = 0;
     }
 
 
@@ -191,16 +597,59 @@ class BloomFilter {
      * Method add
      *
      * The method will set the bits in the bloom filter map for each of the 'k'
-     * hash codes based on the passed String being added to the set.
+     * hash codes based on the passed String being added to the set. The
+     * overloads that follow do the same for the other key types.
      *
      * @param String - the value to add the to set
      */
 
-    public void add(String s) {
+    public void add(CharSequence s) {
+        long hc = hash(s, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
         for (int n = 0; n < noHashes; n++) {
-            long hc = hashCode(s, n);
-            int bitNo = (int) (hc) & this.hashMask;
-            data.set(bitNo);
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(s, n);
+            int bitNo = bitNo(base, hc);
+            setBit(bitNo);
+        }
+    }
+
+    public void add(byte[] b) {
+        add(b, 0, b.length);
+    }
+
+    public void add(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        long hc = hash(b, off, len, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(b, off, len, n);
+            setBit(bitNo(base, hc));
+        }
+    }
+
+    public void add(ByteBuffer buf) {
+        long hc = hash(buf, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(buf, n);
+            setBit(bitNo(base, hc));
+        }
+    }
+
+    public void add(long key) {
+        long hc = hash(key, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(key, n);
+            setBit(bitNo(base, hc));
         }
     }
 
@@ -210,16 +659,21 @@ class BloomFilter {
      *
      * The method will check the bits in the bloom filter map for each
      * of the 'k' hash codes based on the passed in parameter. It returns
-     * false if not in the set, else true if most probably in the set.
+     * false if not in the set, else true if most probably in the set. The
+     * overloads that follow do the same for the other key types.
      *
      * @param boolean - false if not in set, else true for most probably in set
      */
 
-    public boolean contains(String s) {
+    public boolean contains(CharSequence s) {
+        long hc = hash(s, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
         for (int n=0; n<noHashes; n++) {
-            long hc = hashCode(s, n);
-            int bitNo = (int) (hc) & this.hashMask;
-            if(!data.get(bitNo)) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(s, n);
+            int bitNo = bitNo(base, hc);
+            if(!getBit(bitNo)) {
                 return false;
             }
 
@@ -235,6 +689,1037 @@ class BloomFilter {
         return true;
     }
 
+    public boolean contains(byte[] b) {
+        return contains(b, 0, b.length);
+    }
+
+    public boolean contains(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        long hc = hash(b, off, len, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(b, off, len, n);
+            if (!getBit(bitNo(base, hc)))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean contains(ByteBuffer buf) {
+        long hc = hash(buf, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(buf, n);
+            if (!getBit(bitNo(base, hc)))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        long hc = hash(key, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(key, n);
+            if (!getBit(bitNo(base, hc)))
+                return false;
+        }
+        return true;
+    }
+
+
+    /*
+     * Statistics
+     *
+     * A filter that receives more items than it was sized for keeps
+     * working, but its false positive rate climbs as its bits fill up. The
+     * methods below report how full a filter is without scanning it: the
+     * number of bits set is counted as bits are set, when a bit that was
+     * clear is set.
+     *
+     * From the fraction of bits set, X / m, the number of items 'n' that
+     * were added and the current false positive rate can be estimated
+     * (Swamidass and Baldi):
+     *
+     *      n ~= -(m / k) * ln(1 - X / m)        fpp ~= (X / m)^k
+     *
+     * Both assume the STANDARD layout; for the BLOCKED layout they are
+     * slightly optimistic, as items are not spread evenly over the map.
+     *
+     * A read-only filter from open() counts its bits once, on first use.
+     */
+
+    public long bitCount() {
+        if (bitsSet < 0) {
+            long count = 0;
+            for (int i = 0, n = noWords(); i < n; i++)
+                count += Long.bitCount(mapped.get(i));
+            bitsSet = count;
+        }
+        return bitsSet;
+    }
+
+    public double fillRatio() {
+        return (double) bitCount() / noBits;
+    }
+
+    public double estimatedItems() {
+        return -((double) noBits / noHashes) * Math.log1p(-fillRatio());
+    }
+
+    public double expectedFpp() {
+        return Math.pow(fillRatio(), noHashes);
+    }
+
+
+    /*
+     * Method onSaturation
+     *
+     * Registers a listener that is called once, from within add(), when
+     * the expected false positive rate first reaches 'maxFpp'. This lets
+     * an application alert on or rebuild a filter that has drifted past
+     * its design point. The rate is turned into a number of set bits up
+     * front, m * maxFpp^(1/k), so the check on add() is a single compare
+     * of two longs. Passing a null listener removes it.
+     *
+     * @param maxFpp - the false positive rate to notify at
+     * @param listener - called with this filter when the rate is reached
+     */
+
+    public void onSaturation(double maxFpp, Consumer<BloomFilter> listener) {
+        if (!(maxFpp > 0 && maxFpp <= 1))
+            throw new IllegalArgumentException("Invalid false positive rate");
+        this.saturationListener = listener;
+        if (listener == null) {
+            this.saturationBits = -1;
+            return;
+        }
+        long bits = (long) Math.ceil(noBits * Math.pow(maxFpp, 1.0 / noHashes));
+        this.saturationBits = Math.max(1, bits);
+        if (bitCount() >= saturationBits)
+            listener.accept(this);
+    }
+
+
+    /*
+     * Merging filters
+     *
+     * Two filters with the same size, number of hash codes, layout, hash
+     * scheme and hash strategy set the same bits for the same element, so:
+     *    1) the bitwise OR of their maps is exactly the filter that would
+     *       have been built by adding the elements of both; and
+     *    2) the bitwise AND of their maps answers "most probably in both".
+     *       This is not quite the filter that would be built from the
+     *       intersection of the two sets: bits set by different elements
+     *       of each set can survive the AND, so it can have a higher false
+     *       positive rate.
+     *
+     * Both are computed a 64-bit word at a time by BitSet.or() / and().
+     */
+
+    private boolean isCompatible(BloomFilter other) {
+        return noBits == other.noBits && exactSize == other.exactSize
+                && noHashes == other.noHashes && layout == other.layout
+                && scheme == other.scheme && hashing == other.hashing;
+    }
+
+    private BitSet bits() {
+        return data != null ? data : BitSet.valueOf(mapped.duplicate());
+    }
+
+    private BloomFilter emptyCopy() {
+        return new BloomFilter(noBits, exactSize, noHashes, layout, scheme,
+                hashing, null);
+    }
+
+    private void merged(long bitsBefore) {
+        bitsSet = data.cardinality();
+        if (saturationBits > bitsBefore && saturationBits <= bitsSet)
+            saturationListener.accept(this);
+    }
+
+
+    /*
+     * Method union
+     *
+     * Adds every element of the passed filter to this one.
+     *
+     * @param other - a filter with the same parameters as this one
+     */
+
+    public void union(BloomFilter other) {
+        if (data == null)
+            throw new UnsupportedOperationException("Bloom filter is read-only");
+        if (!isCompatible(other))
+            throw new IllegalArgumentException("Bloom filters are not compatible");
+        long bitsBefore = bitsSet;
+        data.or(other.bits());
+        merged(bitsBefore);
+    }
+
+
+    /*
+     * Method intersect
+     *
+     * Keeps only the bits that are also set in the passed filter.
+     *
+     * @param other - a filter with the same parameters as this one
+     */
+
+    public void intersect(BloomFilter other) {
+        if (data == null)
+            throw new UnsupportedOperationException("Bloom filter is read-only");
+        if (!isCompatible(other))
+            throw new IllegalArgumentException("Bloom filters are not compatible");
+        data.and(other.bits());
+        merged(bitsSet);
+    }
+
+
+    /*
+     * Method addAllParallel
+     *
+     * Adds all the keys of the passed list using the fork/join common
+     * pool. The list is split in halves until each part holds about
+     * 1/parallelism of the keys; each part is added to its own empty copy
+     * of this filter, so the threads never touch a shared bit map, and the
+     * copies are then OR-merged back up the tree of tasks. As the OR of the
+     * parts' bits is the same whatever the split, the result is identical,
+     * bit for bit, to adding the keys one by one.
+     *
+     * Each task needs its own copy of the map, so this uses up to about
+     * 'parallelism' times the memory of the filter while it runs.
+     *
+     * @param keys - the values to add to the set
+     */
+
+    public void addAllParallel(List<? extends CharSequence> keys) {
+        if (data == null)
+            throw new UnsupportedOperationException("Bloom filter is read-only");
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int parallelism = pool.getParallelism();
+        if (parallelism < 2 || keys.size() < 2 * PARALLEL_MIN_KEYS) {
+            for (CharSequence s : keys)
+                add(s);
+            return;
+        }
+        int leafSize = Math.max(PARALLEL_MIN_KEYS,
+                (keys.size() + parallelism - 1) / parallelism);
+        union(pool.invoke(new BuildTask(this, keys, leafSize)));
+    }
+
+    private static final int PARALLEL_MIN_KEYS = 1 << 14;
+
+    // Never serialized, RecursiveTask is only Serializable by inheritance
+    @SuppressWarnings("serial")
+    private static final class BuildTask extends RecursiveTask<BloomFilter> {
+        private final BloomFilter filter;   // the filter to copy the shape of
+        private final List<? extends CharSequence> keys;
+        private final int leafSize;
+
+        BuildTask(BloomFilter filter, List<? extends CharSequence> keys, int leafSize) {
+            this.filter = filter;
+            this.keys = keys;
+            this.leafSize = leafSize;
+        }
+
+        @Override
+        protected BloomFilter compute() {
+            if (keys.size() <= leafSize) {
+                BloomFilter part = filter.emptyCopy();
+                for (CharSequence s : keys)
+                    part.add(s);
+                return part;
+            }
+            int mid = keys.size() >>> 1;
+            BuildTask left = new BuildTask(filter, keys.subList(0, mid), leafSize);
+            left.fork();
+            BloomFilter right = new BuildTask(filter, keys.subList(mid, keys.size()),
+                    leafSize).compute();
+            BloomFilter result = left.join();
+            result.union(right);
+            return result;
+        }
+    }
+
+
+    /*
+     * Batch operations
+     *
+     * When add() or contains() is called for one key at a time, the CPU
+     * hashes the key, then waits on the (likely) cache miss of each bit it
+     * reads before it can move on to hashing the next key. The batch
+     * methods below split the work for a batch of keys into two passes:
+     *    1) compute the bit indexes of all keys in the batch, which is pure
+     *       arithmetic on the keys themselves; then
+     *    2) read or set the bits of the whole batch in one tight loop.
+     *
+     * During the second pass the loads of different keys do not depend on
+     * each other, so the CPU can have many cache misses in flight at once
+     * instead of one at a time. Keys are processed BATCH_SIZE at a time, so
+     * the scratch array of bit indexes stays small and in cache.
+     */
+
+    private static final int BATCH_SIZE = 256;
+
+    private void bitIndexes(String s, int[] bits, int off) {
+        long hc = hash(s, 0);
+        long step = scheme == HashScheme.DOUBLE_HASHING ? hashStep(hc) : 0;
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : hash(s, n);
+            bits[off + n] = bitNo(base, hc);
+        }
+    }
+
+    private boolean testBits(int[] bits, int off) {
+        for (int n = 0; n < noHashes; n++) {
+            if (!getBit(bits[off + n]))
+                return false;
+        }
+        return true;
+    }
+
+
+    /*
+     * Method addAll
+     *
+     * Adds every String of the passed collection (or array) to the set,
+     * exactly as if add() had been called on each of them.
+     *
+     * @param keys - the values to add to the set
+     */
+
+    public void addAll(Collection<? extends String> keys) {
+        int[] bits = new int[BATCH_SIZE * noHashes];
+        int count = 0;
+        for (String s : keys) {
+            bitIndexes(s, bits, count * noHashes);
+            if (++count == BATCH_SIZE) {
+                for (int i = 0; i < bits.length; i++)
+                    setBit(bits[i]);
+                count = 0;
+            }
+        }
+        for (int i = 0; i < count * noHashes; i++)
+            setBit(bits[i]);
+    }
+
+    public void addAll(String[] keys) {
+        addAll(Arrays.asList(keys));
+    }
+
+
+    /*
+     * Method containsAll
+     *
+     * Checks every String of the passed array against the set. Element 'i'
+     * of the result is what contains(keys[i]) would return.
+     *
+     * @param keys - the values to look for
+     * @return - one result per key, true for most probably in set
+     */
+
+    public boolean[] containsAll(String[] keys) {
+        boolean[] found = new boolean[keys.length];
+        int[] bits = new int[BATCH_SIZE * noHashes];
+        for (int start = 0; start < keys.length; start += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, keys.length - start);
+            for (int i = 0; i < count; i++)
+                bitIndexes(keys[start + i], bits, i * noHashes);
+            for (int i = 0; i < count; i++)
+                found[start + i] = testBits(bits, i * noHashes);
+        }
+        return found;
+    }
+
+
+    /*
+     * Method containsAll
+     *
+     * Checks every String of the passed collection against the set, in
+     * iteration order. Bit 'i' of the result is set if the i'th key is
+     * most probably in the set.
+     *
+     * @param keys - the values to look for
+     * @return - a BitSet with one bit per key
+     */
+
+    public BitSet containsAll(Collection<? extends String> keys) {
+        BitSet found = new BitSet(keys.size());
+        int[] bits = new int[BATCH_SIZE * noHashes];
+        int count = 0;
+        int keyNo = 0;
+        for (String s : keys) {
+            bitIndexes(s, bits, count * noHashes);
+            if (++count == BATCH_SIZE) {
+                testBatch(bits, count, keyNo, found);
+                keyNo += count;
+                count = 0;
+            }
+        }
+        testBatch(bits, count, keyNo, found);
+        return found;
+    }
+
+    private void testBatch(int[] bits, int count, int firstKeyNo, BitSet found) {
+        for (int i = 0; i < count; i++) {
+            if (testBits(bits, i * noHashes))
+                found.set(firstKeyNo + i);
+        }
+    }
+
+
+    /*
+     * Method hashOf
+     *
+     * Returns the first hash code of a key, as this filter computes it.
+     * With the DOUBLE_HASHING scheme, or a single hash code, the first
+     * hash code determines every bit of the key, so it can be computed
+     * once, stored alongside the data, and probed later with
+     * contains(long[], boolean[]) without touching the key again.
+     *
+     * @param s - the key
+     * @return - the key's first hash code
+     */
+
+    public long hashOf(CharSequence s) {
+        return hash(s, 0);
+    }
+
+    public long hashOf(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        return hash(b, off, len, 0);
+    }
+
+    public long hashOf(long key) {
+        return hash(key, 0);
+    }
+
+
+    /*
+     * Method contains
+     *
+     * Batch probe of precomputed hash codes, as returned by hashOf().
+     * Element 'i' of 'found' is set to what contains(key) would return
+     * for the key of hashes[i]. Only filters whose bits all follow from
+     * the first hash code can be probed this way, i.e. those using the
+     * DOUBLE_HASHING scheme or a single hash code.
+     *
+     * Each hash code is probed in turn, exactly as contains(key) probes
+     * the hash code it computes, so the saving is the hashing of the keys
+     * and nothing else.
+     *
+     * @param hashes - the first hash codes of the keys
+     * @param found - receives one result per hash code
+     */
+
+    public void contains(long[] hashes, boolean[] found) {
+        if (scheme != HashScheme.DOUBLE_HASHING && noHashes > 1)
+            throw new IllegalStateException(
+                    "Probing by hash code needs the DOUBLE_HASHING scheme");
+        if (found.length < hashes.length)
+            throw new IllegalArgumentException("Result array is too short");
+        for (int i = 0; i < hashes.length; i++)
+            found[i] = containsHash(hashes[i]);
+    }
+
+    private boolean containsHash(long hc) {
+        long step = hashStep(hc);
+        int base = blockBase(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc += step;
+            if (!getBit(bitNo(base, hc)))
+                return false;
+        }
+        return true;
+    }
+
+
+    /*
+     * Persistence
+     *
+     * A filter is saved as a 64-byte header followed by its bit map, as
+     * little endian 64-bit words (bit 'i' is bit 'i % 64' of word 'i / 64',
+     * the same as BitSet.toLongArray()). The header holds:
+     *
+     *      offset  0: magic number, the bytes "BLMF"
+     *      offset  4: format version
+     *      offset  8: base 2 logarithm of the number of bits
+     *      offset 12: number of hash codes
+     *      offset 16: Layout ordinal
+     *      offset 20: HashScheme ordinal
+     *      offset 24: number of bits, as a long             (version 2)
+     *      offset 32: 1 if the filter was made by create()  (version 2)
+     *      offset 36: HashStrategy.Standard ordinal         (version 3)
+     *
+     * with the remaining header bytes reserved (zero). Filters made by
+     * create() are not a power of two in size, and have 0 for the base 2
+     * logarithm. Only the standard hash strategies can be recorded, so a
+     * filter with a custom HashStrategy cannot be saved. Files of earlier
+     * versions are still read, as LCG filters. Keeping the header
+     * at 64 bytes means the bit map starts on a cache line boundary once
+     * the file is mapped, so each 512-bit block of a BLOCKED filter is
+     * exactly one cache line.
+     *
+     * load() reads a file into a regular, writable filter. open() instead
+     * maps the file read-only with FileChannel.map, so there is no load
+     * phase at all: lookups read the bits straight from the page cache,
+     * which the operating system shares between all processes that have
+     * the same file open.
+     */
+
+    private static final int FILE_MAGIC = 0x464D4C42;      // "BLMF"
+    private static final int FILE_VERSION = 3;
+    private static final int HEADER_BYTES = 64;
+
+    private int log2noBits() {
+        return exactSize ? 0 : Integer.bitCount(hashMask);
+    }
+
+    private int noWords() {
+        return (int) ((noBits + 63) >>> 6);
+    }
+
+
+    /*
+     * Method save
+     *
+     * Writes the filter to the passed file, replacing any existing content.
+     *
+     * @param file - the file to write to
+     */
+
+    public void save(Path file) throws IOException {
+        if (!(hashing instanceof HashStrategy.Standard))
+            throw new IllegalStateException(
+                    "Only filters using a standard HashStrategy can be saved");
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(log2noBits())
+                .putInt(noHashes).putInt(layout.ordinal()).putInt(scheme.ordinal())
+                .putLong(noBits).putInt(exactSize ? 1 : 0)
+                .putInt(((HashStrategy.Standard) hashing).ordinal());
+        buf.position(HEADER_BYTES);
+
+        long[] words = data != null ? data.toLongArray() : null;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0, n = noWords(); i < n; i++) {
+                if (!buf.hasRemaining()) {
+                    buf.flip();
+                    while (buf.hasRemaining())
+                        ch.write(buf);
+                    buf.clear();
+                }
+                if (words != null)
+                    buf.putLong(i < words.length ? words[i] : 0L);
+                else
+                    buf.putLong(mapped.get(i));
+            }
+            buf.flip();
+            while (buf.hasRemaining())
+                ch.write(buf);
+        }
+    }
+
+
+    /*
+     * Method open
+     *
+     * Maps a file written by save() into memory and returns a read-only
+     * filter over it. The mapping stays valid after the method returns,
+     * for as long as the filter is in use.
+     *
+     * @param file - the file to open
+     * @return - a read-only filter backed by the file
+     */
+
+    public static BloomFilter open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            return fromHeader(map, ch.size(), true);
+        }
+    }
+
+
+    /*
+     * Method load
+     *
+     * Reads a file written by save() into a new, writable filter.
+     *
+     * @param file - the file to read
+     * @return - a filter holding a copy of the file's bit map
+     */
+
+    public static BloomFilter load(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            return fromHeader(map, ch.size(), false);
+        }
+    }
+
+    private static BloomFilter fromHeader(ByteBuffer buf, long fileSize,
+                                          boolean readOnly) throws IOException {
+        if (fileSize < HEADER_BYTES || buf.getInt(0) != FILE_MAGIC)
+            throw new IOException("Not a Bloom filter file");
+        int version = buf.getInt(4);
+        if (version < 1 || version > FILE_VERSION)
+            throw new IOException("Unsupported Bloom filter file version "
+                    + version);
+        int log2noBits = buf.getInt(8);
+        int noHashes = buf.getInt(12);
+        int layoutNo = buf.getInt(16);
+        int schemeNo = buf.getInt(20);
+        boolean exactSize = version >= 2 && buf.getInt(32) != 0;
+        int hashingNo = version >= 3 ? buf.getInt(36) : 0;
+        long noBits = version >= 2 ? buf.getLong(24)
+                : log2noBits >= 1 && log2noBits <= 31 ? 1L << log2noBits : 0;
+        if (exactSize ? noBits < 1 || noBits > Integer.MAX_VALUE
+                      : log2noBits < 1 || log2noBits > 31 || noBits != 1L << log2noBits)
+            throw new IOException("Corrupt Bloom filter header");
+        if (noHashes < 1 || noHashes > MAX_HASHES
+                || layoutNo < 0 || layoutNo >= Layout.values().length
+                || schemeNo < 0 || schemeNo >= HashScheme.values().length
+                || hashingNo < 0 || hashingNo >= HashStrategy.Standard.values().length)
+            throw new IOException("Corrupt Bloom filter header");
+        long noWords = Math.max(1, (noBits + 63) >>> 6);
+        if (fileSize != HEADER_BYTES + noWords * 8)
+            throw new IOException("Bloom filter file has the wrong size");
+
+        LongBuffer words = buf.position(HEADER_BYTES).slice()
+                .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        Layout layout = Layout.values()[layoutNo];
+        HashScheme scheme = HashScheme.values()[schemeNo];
+        HashStrategy hashing = HashStrategy.Standard.values()[hashingNo];
+        if (readOnly)
+            return new BloomFilter(noBits, exactSize, noHashes, layout, scheme,
+                    hashing, words);
+
+        BloomFilter bf = new BloomFilter(noBits, exactSize, noHashes, layout,
+                scheme, hashing, null);
+        bf.data.or(BitSet.valueOf(words));
+        bf.bitsSet = bf.data.cardinality();
+        return bf;
+    }
+
+
+    /*
+     * Compressed wire format
+     *
+     * save() writes every word of the bit map, so a sparse filter costs as
+     * much to ship as a full one. The wire format instead records the
+     * positions of the set bits, as the gaps between one set bit and the
+     * next, using Golomb-Rice coding: a gap 'g' is split into g >>> r,
+     * written in unary (that many 1 bits, then a 0), and the low 'r' bits
+     * of 'g', written as they are. If the 'n' set bits of an 'm' bit map
+     * are spread at random the gaps are geometric with mean m / n, and
+     * choosing
+     *
+     *      r = floor(log2(ln 2 * m / n))
+     *
+     * comes within a few percent of the entropy of the bit map, about
+     * log2(m / n) + 1.5 bits per set bit. Once a filter is around half
+     * full that is no smaller than the bit map itself, so the words are
+     * then written as they are instead ("raw" encoding).
+     *
+     * A delta records the difference between two versions of the same
+     * filter: the bits that differ, i.e. the set bits of the XOR of the
+     * two maps, Rice coded in the same way. A handful of new elements
+     * changes a handful of bits, so the delta is a few bytes per element
+     * added, whatever the size of the filter. Applying it to the old
+     * version flips those bits and gives the new one; as it is an XOR,
+     * the delta can be applied in either direction.
+     *
+     * The header of both holds the filter's parameters in big endian
+     * order (as DataOutputStream writes them):
+     *
+     *      magic number       int   "BLMZ" (filter) or "BLMD" (delta)
+     *      format version     int
+     *      number of bits     long
+     *      exact size         byte  1 if made by create()
+     *      number of hashes   byte
+     *      Layout             byte  ordinal
+     *      HashScheme         byte  ordinal
+     *      HashStrategy       byte  HashStrategy.Standard ordinal
+     *      encoding           byte  0 raw, 1 Rice
+     *      Rice parameter     byte
+     *      count              long  set bits / changed bits
+     *
+     * Encoding and decoding both stream: the bit map is walked one word
+     * at a time without copying it, and decoded bits are set directly in
+     * the new filter.
+     */
+
+    private static final int WIRE_MAGIC = 0x424C4D5A;      // "BLMZ"
+    private static final int DELTA_MAGIC = 0x424C4D44;     // "BLMD"
+    private static final int WIRE_VERSION = 1;
+    private static final int RAW = 0, RICE = 1;
+
+    private static int riceParameter(long range, long count) {
+        if (count == 0)
+            return 0;
+        double mean = Math.log(2) * range / count;
+        return mean < 2 ? 0 : Math.min(62, 63 - Long.numberOfLeadingZeros((long) mean));
+    }
+
+    private void writeWireHeader(DataOutputStream out, int magic) throws IOException {
+        if (!(hashing instanceof HashStrategy.Standard))
+            throw new IllegalStateException(
+                    "Only filters using a standard HashStrategy can be written");
+        out.writeInt(magic);
+        out.writeInt(WIRE_VERSION);
+        out.writeLong(noBits);
+        out.writeByte(exactSize ? 1 : 0);
+        out.writeByte(noHashes);
+        out.writeByte(layout.ordinal());
+        out.writeByte(scheme.ordinal());
+        out.writeByte(((HashStrategy.Standard) hashing).ordinal());
+    }
+
+
+    /*
+     * Method writeTo
+     *
+     * Writes the filter to the stream in the compressed wire format.
+     *
+     * @param os - the stream to write to, which is left open
+     */
+
+    public void writeTo(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        writeWireHeader(out, WIRE_MAGIC);
+        long count = bitCount();
+        int r = riceParameter(noBits, count);
+        long riceBits = count == 0 ? 0 : count * (r + 1) + (noBits >>> r);
+        boolean raw = riceBits >= noWords() * 64L;
+        out.writeByte(raw ? RAW : RICE);
+        out.writeByte(r);
+        out.writeLong(count);
+
+        WordCursor words = new WordCursor();
+        if (raw) {
+            int next = 0;
+            while (words.next()) {
+                for (; next < words.index; next++)
+                    out.writeLong(0);
+                out.writeLong(words.word);
+                next++;
+            }
+            for (int n = noWords(); next < n; next++)
+                out.writeLong(0);
+            out.flush();
+            return;
+        }
+
+        writeGaps(words, r, out);
+    }
+
+    private static void writeGaps(WordCursor words, int r, DataOutputStream out)
+            throws IOException {
+        BitWriter bits = new BitWriter(out);
+        long last = -1;
+        while (words.next()) {
+            for (long w = words.word; w != 0; w &= w - 1) {
+                long bitNo = ((long) words.index << 6) + Long.numberOfTrailingZeros(w);
+                bits.writeRice(bitNo - last - 1, r);
+                last = bitNo;
+            }
+        }
+        bits.flush();
+    }
+
+
+    /*
+     * Method readFrom
+     *
+     * Reads a filter written by writeTo().
+     *
+     * @param is - the stream to read from, which is left open
+     * @return - a new, writable filter
+     */
+
+    public static BloomFilter readFrom(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != WIRE_MAGIC)
+            throw new IOException("Not a compressed Bloom filter");
+        BloomFilter bf = readWireHeader(in, null);
+        int encoding = in.readByte();
+        int r = in.readByte();
+        long count = in.readLong();
+        if ((encoding != RAW && encoding != RICE) || r < 0 || r > 62
+                || count < 0 || count > bf.noBits)
+            throw new IOException("Corrupt compressed Bloom filter");
+
+        if (encoding == RAW) {
+            for (int i = 0, n = bf.noWords(); i < n; i++) {
+                for (long w = in.readLong(); w != 0; w &= w - 1)
+                    bf.data.set((i << 6) + Long.numberOfTrailingZeros(w));
+            }
+        } else {
+            BitReader bits = new BitReader(in);
+            long bitNo = -1;
+            for (long i = 0; i < count; i++) {
+                bitNo = bits.nextBit(bitNo, r, bf.noBits);
+                bf.data.set((int) bitNo);
+            }
+        }
+        bf.bitsSet = bf.data.cardinality();
+        if (bf.bitsSet != count)
+            throw new IOException("Corrupt compressed Bloom filter");
+        return bf;
+    }
+
+    private static BloomFilter readWireHeader(DataInputStream in, LongBuffer mapped)
+            throws IOException {
+        int version = in.readInt();
+        if (version != WIRE_VERSION)
+            throw new IOException("Unsupported Bloom filter wire version " + version);
+        long noBits = in.readLong();
+        boolean exactSize = in.readByte() != 0;
+        int noHashes = in.readByte();
+        int layoutNo = in.readByte();
+        int schemeNo = in.readByte();
+        int hashingNo = in.readByte();
+        if (noBits < 1 || noBits > (exactSize ? Integer.MAX_VALUE : 1L << 31)
+                || (!exactSize && Long.bitCount(noBits) != 1)
+                || noHashes < 1 || noHashes > MAX_HASHES
+                || layoutNo < 0 || layoutNo >= Layout.values().length
+                || schemeNo < 0 || schemeNo >= HashScheme.values().length
+                || hashingNo < 0 || hashingNo >= HashStrategy.Standard.values().length)
+            throw new IOException("Corrupt compressed Bloom filter header");
+        try {
+            return new BloomFilter(noBits, exactSize, noHashes,
+                    Layout.values()[layoutNo], HashScheme.values()[schemeNo],
+                    HashStrategy.Standard.values()[hashingNo], mapped);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt compressed Bloom filter header", e);
+        }
+    }
+
+
+    /*
+     * Method writeDelta
+     *
+     * Writes the changes from 'previous' to this filter, so that a node
+     * holding 'previous' can bring it up to date with applyDelta().
+     *
+     * @param previous - an earlier version of this filter
+     * @param os - the stream to write to, which is left open
+     */
+
+    public void writeDelta(BloomFilter previous, OutputStream os) throws IOException {
+        if (!isCompatible(previous))
+            throw new IllegalArgumentException("Bloom filters are not compatible");
+
+        // One pass to count the changed bits, for the Rice parameter and
+        // so that the reader knows when to stop, and one to write them
+        long changed = 0;
+        for (DeltaCursor d = new DeltaCursor(previous); d.next(); )
+            changed += Long.bitCount(d.word);
+
+        DataOutputStream out = new DataOutputStream(os);
+        writeWireHeader(out, DELTA_MAGIC);
+        int r = riceParameter(noBits, changed);
+        out.writeByte(RICE);
+        out.writeByte(r);
+        out.writeLong(changed);
+        writeGaps(new DeltaCursor(previous), r, out);
+    }
+
+
+    /*
+     * Method applyDelta
+     *
+     * Applies a delta written by writeDelta() to this filter, which must
+     * be the 'previous' filter the delta was made from.
+     *
+     * @param is - the stream to read from, which is left open
+     */
+
+    public void applyDelta(InputStream is) throws IOException {
+        if (data == null)
+            throw new UnsupportedOperationException("Bloom filter is read-only");
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != DELTA_MAGIC)
+            throw new IOException("Not a Bloom filter delta");
+        // An empty, read-only filter is enough to compare the parameters
+        if (!isCompatible(readWireHeader(in, LongBuffer.allocate(0))))
+            throw new IOException("Delta is for a different Bloom filter");
+        int encoding = in.readByte();
+        int r = in.readByte();
+        long changed = in.readLong();
+        if (encoding != RICE || r < 0 || r > 62 || changed < 0 || changed > noBits)
+            throw new IOException("Corrupt Bloom filter delta");
+
+        long bitsBefore = bitCount();
+        BitReader bits = new BitReader(in);
+        long bitNo = -1;
+        for (long i = 0; i < changed; i++) {
+            bitNo = bits.nextBit(bitNo, r, noBits);
+            data.flip((int) bitNo);
+        }
+        merged(bitsBefore);
+    }
+
+
+    /*
+     * Walks the non-zero words of the bit map in order, without copying
+     * it: a BitSet is walked with nextSetBit(), a mapped file word by word.
+     */
+
+    private class WordCursor {
+        int index = -1;             // index of the current word
+        long word;                  // the current word
+        private int nextBit = 0;    // BitSet only, next bit to look at
+
+        boolean next() {
+            if (data == null) {
+                for (int n = noWords(); ++index < n; ) {
+                    if ((word = mapped.get(index)) != 0)
+                        return true;
+                }
+                return false;
+            }
+            int bit = nextBit < 0 ? -1 : data.nextSetBit(nextBit);
+            if (bit < 0)
+                return false;
+            index = bit >>> 6;
+            word = 0;
+            long end = ((long) index + 1) << 6;
+            while (bit >= 0 && bit < end) {
+                word |= 1L << bit;
+                bit = bit < Integer.MAX_VALUE ? data.nextSetBit(bit + 1) : -1;
+            }
+            nextBit = end <= Integer.MAX_VALUE ? (int) end : -1;
+            return true;
+        }
+    }
+
+    /*
+     * Walks the XOR of this filter's words and those of 'previous',
+     * merging the non-zero words of both and skipping equal ones.
+     */
+
+    private final class DeltaCursor extends WordCursor {
+        private final WordCursor a = new WordCursor();
+        private final WordCursor b;
+        private boolean hasA, hasB;
+
+        DeltaCursor(BloomFilter previous) {
+            b = previous.new WordCursor();
+            hasA = a.next();
+            hasB = b.next();
+        }
+
+        @Override
+        boolean next() {
+            while (hasA || hasB) {
+                if (hasA && (!hasB || a.index < b.index)) {
+                    index = a.index;
+                    word = a.word;
+                    hasA = a.next();
+                } else if (hasB && (!hasA || b.index < a.index)) {
+                    index = b.index;
+                    word = b.word;
+                    hasB = b.next();
+                } else {
+                    index = a.index;
+                    word = a.word ^ b.word;
+                    hasA = a.next();
+                    hasB = b.next();
+                }
+                if (word != 0)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+
+    /*
+     * Bit level streams for the Rice codes, buffering up to 64 bits.
+     * Bits are packed most significant first.
+     */
+
+    private static final class BitWriter {
+        private final DataOutputStream out;
+        private long acc;           // pending bits, in the low 'count' bits
+        private int count;
+
+        BitWriter(DataOutputStream out) { this.out = out; }
+
+        void write(long value, int bits) throws IOException {
+            // bits <= 32, so the accumulator never holds more than 39 bits
+            acc = (acc << bits) | (value & ((1L << bits) - 1));
+            count += bits;
+            while (count >= 8) {
+                count -= 8;
+                out.write((int) (acc >>> count));
+            }
+        }
+
+        void writeRice(long value, int r) throws IOException {
+            for (long q = value >>> r; q > 0; q -= Math.min(q, 32))
+                write(-1L, (int) Math.min(q, 32));
+            write(0, 1);
+            if (r > 32) {
+                write(value >>> 32, r - 32);
+                write(value, 32);
+            } else if (r > 0) {
+                write(value, r);
+            }
+        }
+
+        void flush() throws IOException {
+            if (count > 0)
+                write(0, 8 - count);
+            out.flush();
+        }
+    }
+
+    private static final class BitReader {
+        private final DataInputStream in;
+        private long acc;
+        private int count;
+
+        BitReader(DataInputStream in) { this.in = in; }
+
+        long read(int bits) throws IOException {
+            while (count < bits) {
+                acc = (acc << 8) | in.readUnsignedByte();
+                count += 8;
+            }
+            count -= bits;
+            return (acc >>> count) & ((1L << bits) - 1);
+        }
+
+        long readRice(int r) throws IOException {
+            long q = 0;
+            while (read(1) != 0)
+                q++;
+            if (r > 32)
+                return (q << r) | (read(r - 32) << 32) | read(32);
+            return (q << r) | (r > 0 ? read(r) : 0);
+        }
+
+        long nextBit(long lastBit, int r, long noBits) throws IOException {
+            long bitNo = lastBit + readRice(r) + 1;
+            if (bitNo <= lastBit || bitNo >= noBits)
+                throw new IOException("Corrupt compressed Bloom filter");
+            return bitNo;
+        }
+    }
+
 
     /*********************************
      *
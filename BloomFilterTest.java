@@ -0,0 +1,178 @@
+/******************************************************************
+ *
+ *   Regression tests for BloomFilter, beyond those in Main.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * BloomFilter Regression Tests
+ *
+ * Run with 'java BloomFilterTest'; prints each test's result, and exits
+ * with status 1 if any failed.
+ */
+
+public class BloomFilterTest {
+
+    private static final int KEYS = 2000;
+    private static final int PAD = 3;       // offset of keys within arrays
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        for (HashStrategy strategy : HashStrategy.Standard.values()) {
+            for (BloomFilter.Layout layout : BloomFilter.Layout.values()) {
+                for (BloomFilter.HashScheme scheme : BloomFilter.HashScheme.values()) {
+                    String name = strategy + ", " + layout + ", " + scheme;
+                    stringKeyTypes(name, strategy, layout, scheme);
+                    longKeyTypes(name, strategy, layout, scheme);
+                }
+            }
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String test, boolean passed) {
+        System.out.println(test + (passed ? " - PASSED" : " - FAILED"));
+        if (!passed)
+            failures++;
+    }
+
+    private static BloomFilter filter(HashStrategy strategy, BloomFilter.Layout layout,
+                                      BloomFilter.HashScheme scheme) {
+        return new BloomFilter(16, 5, layout, scheme, strategy);
+    }
+
+    // The filter's bit map, as written by writeTo()
+    private static byte[] image(BloomFilter filter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.writeTo(out);
+        return out.toByteArray();
+    }
+
+    // A random String, with chars outside Latin-1 and surrogate pairs
+    private static String randomKey(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int len = 1 + random.nextInt(20), i = 0; i < len; i++) {
+            switch (random.nextInt(4)) {
+                case 0:  sb.append((char) ('a' + random.nextInt(26))); break;
+                case 1:  sb.append((char) (0xA0 + random.nextInt(0x60))); break;
+                case 2:  sb.append((char) (0x4E00 + random.nextInt(0x5000))); break;
+                default: sb.appendCodePoint(0x1F600 + random.nextInt(0x50)); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    // The bytes, at offset PAD of an array with junk around them
+    private static byte[] padded(byte[] bytes) {
+        byte[] b = new byte[PAD + bytes.length + PAD];
+        Arrays.fill(b, (byte) 0x5A);
+        System.arraycopy(bytes, 0, b, PAD, bytes.length);
+        return b;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(PAD + bytes.length);
+        buf.position(PAD);
+        buf.put(bytes);
+        buf.position(PAD);
+        return buf;
+    }
+
+
+    /*
+     * A String, a StringBuilder with the same chars, and the String's
+     * UTF-16LE bytes as a byte[], a byte[] range at a nonzero offset, and
+     * heap and direct ByteBuffers must all set the very same bits, and be
+     * found in each other's filters.
+     */
+
+    private static void stringKeyTypes(String name, HashStrategy strategy,
+                                       BloomFilter.Layout layout,
+                                       BloomFilter.HashScheme scheme) throws IOException {
+        BloomFilter[] filters = new BloomFilter[6];
+        for (int i = 0; i < filters.length; i++)
+            filters[i] = filter(strategy, layout, scheme);
+
+        Random random = new Random(1);
+        String[] keys = new String[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            String s = keys[k] = randomKey(random);
+            byte[] utf16 = s.getBytes(StandardCharsets.UTF_16LE);
+            byte[] pad = padded(utf16);
+            filters[0].add(s);
+            filters[1].add(new StringBuilder(s));
+            filters[2].add(utf16);
+            filters[3].add(pad, PAD, utf16.length);
+            filters[4].add(ByteBuffer.wrap(pad, PAD, utf16.length));
+            filters[5].add(direct(utf16));
+        }
+
+        byte[] expected = image(filters[0]);
+        boolean passed = true;
+        for (int i = 1; passed && i < filters.length; i++)
+            passed = Arrays.equals(expected, image(filters[i]));
+
+        for (int k = 0; passed && k < KEYS; k++) {
+            String s = keys[k];
+            byte[] utf16 = s.getBytes(StandardCharsets.UTF_16LE);
+            byte[] pad = padded(utf16);
+            for (int i = 0; passed && i < filters.length; i++) {
+                BloomFilter f = filters[i];
+                ByteBuffer heap = ByteBuffer.wrap(pad, PAD, utf16.length);
+                ByteBuffer buf = direct(utf16);
+                passed = f.contains(s) && f.contains(new StringBuilder(s))
+                        && f.contains(utf16) && f.contains(pad, PAD, utf16.length)
+                        && f.contains(heap) && f.contains(buf)
+                        && heap.position() == PAD && buf.position() == PAD;
+            }
+        }
+        check("String and UTF-16LE key types, " + name, passed);
+    }
+
+
+    /*
+     * A long must set the same bits as its 8 bytes in little endian
+     * order, as a byte[] and as a ByteBuffer.
+     */
+
+    private static void longKeyTypes(String name, HashStrategy strategy,
+                                     BloomFilter.Layout layout,
+                                     BloomFilter.HashScheme scheme) throws IOException {
+        BloomFilter[] filters = new BloomFilter[3];
+        for (int i = 0; i < filters.length; i++)
+            filters[i] = filter(strategy, layout, scheme);
+
+        Random random = new Random(2);
+        long[] keys = new long[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            long key = keys[k] = random.nextLong();
+            byte[] le = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(key).array();
+            filters[0].add(key);
+            filters[1].add(le);
+            filters[2].add(direct(le));
+        }
+
+        byte[] expected = image(filters[0]);
+        boolean passed = Arrays.equals(expected, image(filters[1]))
+                && Arrays.equals(expected, image(filters[2]));
+        for (int k = 0; passed && k < KEYS; k++) {
+            byte[] le = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(keys[k]).array();
+            for (int i = 0; passed && i < filters.length; i++)
+                passed = filters[i].contains(keys[k]) && filters[i].contains(le);
+        }
+        check("long and little endian key types, " + name, passed);
+    }
+}
@@ -0,0 +1,145 @@
+/******************************************************************
+ *
+ *   Concurrent Bloom filter, a thread-safe companion of BloomFilter.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+
+/**
+ * Concurrent Bloom Filters
+ *
+ * BloomFilter keeps its bit map in a java.util.BitSet, which is not safe
+ * to use from several threads at once: two threads setting bits in the
+ * same 64-bit word can overwrite each other's update, which would lose
+ * bits and hence give false negatives.
+ *
+ * This class keeps the bit map in a plain long[] and updates it through a
+ * VarHandle:
+ *    1) add() sets each bit with an atomic getAndBitwiseOr on its word, so
+ *       concurrent updates to the same word are never lost. It is
+ *       lock-free; a thread never waits for another one.
+ *    2) contains() only performs volatile reads of the words, so it is
+ *       wait-free and never contends with writers.
+ *
+ * Bits are never cleared, so once add(s) has returned, every contains(s)
+ * that starts afterwards, in any thread, returns true. Calls that race
+ * with an add of the same element may see it as absent, as they would if
+ * they had run just before it.
+ *
+ * Before the atomic update, add() first reads the word and skips the
+ * update when the bit is already set. On a filter that is filling up most
+ * bits are already set, and skipping the write keeps the cache line in a
+ * shared state across cores instead of bouncing it between them.
+ *
+ * The filter uses the same hashing, layouts and hash schemes as
+ * BloomFilter, so for the same parameters both set exactly the same bits.
+ */
+
+class ConcurrentBloomFilter {
+    private static final VarHandle WORDS =
+            MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] words;                     // The hash bit map
+    private final int noHashes;                     // number of hashes
+    private final BloomFilter.Layout layout;        // bit layout of the map
+    private final BloomFilter.HashScheme scheme;    // how hash codes are made
+    private final int blockMask;                    // block selection mask
+    private final int probeMask;                    // mask for each hash code
+
+
+    /*
+     * Constructors take the same parameters as the first BloomFilter
+     * constructor: the base 2 logarithm of the number of bits and the
+     * number of hash functions, and optionally the Layout and HashScheme.
+     */
+
+    public ConcurrentBloomFilter(int log2noBits, int noHashes) {
+        this(log2noBits, noHashes, BloomFilter.Layout.STANDARD,
+                BloomFilter.HashScheme.PER_INDEX);
+    }
+
+    public ConcurrentBloomFilter(int log2noBits, int noHashes,
+                                 BloomFilter.Layout layout,
+                                 BloomFilter.HashScheme scheme) {
+        if (log2noBits < 1 || log2noBits > 31)
+            throw new IllegalArgumentException("Invalid number of bits");
+        if (noHashes < 1 || noHashes > BloomFilter.MAX_HASHES)
+            throw new IllegalArgumentException("Invalid number of hashes");
+        if (layout == BloomFilter.Layout.BLOCKED
+                && log2noBits < BloomFilter.LOG2_BLOCK_BITS)
+            throw new IllegalArgumentException("Blocked filter needs at least "
+                    + (1 << BloomFilter.LOG2_BLOCK_BITS) + " bits");
+
+        this.words = new long[(int) Math.max(1, (1L << log2noBits) >>> 6)];
+        this.noHashes = noHashes;
+        this.layout = layout;
+        this.scheme = scheme;
+        if (layout == BloomFilter.Layout.BLOCKED) {
+            this.blockMask = (1 << (log2noBits - BloomFilter.LOG2_BLOCK_BITS)) - 1;
+            this.probeMask = BloomFilter.BLOCK_MASK;
+        } else {
+            this.blockMask = 0;
+            this.probeMask = (int) ((1L << log2noBits) - 1);
+        }
+    }
+
+    public BloomFilter.Layout layout() { return layout; }
+    public BloomFilter.HashScheme scheme() { return scheme; }
+
+
+    /*
+     * Method add
+     *
+     * Sets the bits for each of the 'k' hash codes of the passed String.
+     * Safe to call concurrently with add() and contains() from any thread.
+     *
+     * @param String - the value to add the to set
+     */
+
+    public void add(String s) {
+        long hc = BloomFilter.hashCode(s, 0);
+        long step = scheme == BloomFilter.HashScheme.DOUBLE_HASHING
+                ? BloomFilter.hashStep(hc) : 0;
+        int base = ((int) (hc >>> 32) & blockMask) << BloomFilter.LOG2_BLOCK_BITS;
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(s, n);
+            int bitNo = base + ((int) (hc) & probeMask);
+            long mask = 1L << bitNo;
+            int wordNo = bitNo >>> 6;
+            if (((long) WORDS.getOpaque(words, wordNo) & mask) == 0)
+                WORDS.getAndBitwiseOr(words, wordNo, mask);
+        }
+    }
+
+
+    /*
+     * Method contains
+     *
+     * Checks the bits for each of the 'k' hash codes of the passed String.
+     * Never blocks and never writes to the bit map.
+     *
+     * @param boolean - false if not in set, else true for most probably in set
+     */
+
+    public boolean contains(String s) {
+        long hc = BloomFilter.hashCode(s, 0);
+        long step = scheme == BloomFilter.HashScheme.DOUBLE_HASHING
+                ? BloomFilter.hashStep(hc) : 0;
+        int base = ((int) (hc >>> 32) & blockMask) << BloomFilter.LOG2_BLOCK_BITS;
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(s, n);
+            int bitNo = base + ((int) (hc) & probeMask);
+            if (((long) WORDS.getVolatile(words, bitNo >>> 6) & (1L << bitNo)) == 0)
+                return false;
+        }
+        return true;
+    }
+}
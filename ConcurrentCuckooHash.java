@@ -0,0 +1,556 @@
+/******************************************************************
+ *
+ *   Concurrent cuckoo hashmap, with striped locks for writers and
+ *   lock-free reads.
+ *
+ *   Note, additional comments provided throughout this source code
+ *   is for educational purposes
+ *
+ ********************************************************************/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Concurrent Cuckoo Hashing
+ *
+ * CuckooHash is not thread safe, and wrapping it in 'synchronized' lets
+ * only one thread at a time into the table, even when all of them only
+ * read. This class follows the design of libcuckoo (Li, Andersen,
+ * Kaminsky and Freedman, "Algorithmic Improvements for Fast Concurrent
+ * Cuckoo Hashing"):
+ *
+ *    1) The table has buckets of SLOTS slots, as in the bucketized mode
+ *       of CuckooHash, and every key has two candidate buckets.
+ *
+ *    2) Buckets are guarded by LOCK_STRIPES locks, bucket 'b' by lock
+ *       b mod LOCK_STRIPES. A writer only locks the stripes of the two
+ *       buckets it changes, always the lower stripe first, so writers to
+ *       other buckets carry on in parallel and can't deadlock.
+ *
+ *    3) When both buckets of a new key are full, the writer first looks
+ *       for a "cuckoo path", a chain of kicks that ends in a free slot,
+ *       with a breadth-first search of the table, without holding any
+ *       lock. It then makes the moves backwards from the free slot, one
+ *       at a time, each under the locks of just the two buckets involved
+ *       and only after checking that the path is still valid. Every move
+ *       copies the element into its new slot before freeing the old one,
+ *       so it is never missing from the table. If the search finds no
+ *       path, the table is full and grows to 2*capacity + 1 buckets.
+ *       Growing takes every stripe in a separate "resize" mode, which
+ *       keeps writers out but leaves readers alone, and publishes the new
+ *       table once it is complete.
+ *
+ *    4) Each lock is also a version counter, a "seqlock": its writer bit
+ *       is set while a writer holds the lock, and the version goes up
+ *       when the writer releases it. get() takes no lock at all. It reads
+ *       the versions of the two stripes, searches the two buckets, and
+ *       reads the versions again; if a writer held either lock or the
+ *       version has changed, a writer was at work on the buckets, and
+ *       get() tries again. The resize bit is ignored, as nothing changes
+ *       the old table while it grows; get() only starts over with the new
+ *       table once it has been published.
+ *
+ * Reads therefore never block each other or wait for a lock, not even
+ * while the table grows, and only retry when a writer changes one of the
+ * two buckets at that very moment. Writers that find a stripe locked spin
+ * briefly, and then park for a while, which is what they mostly do while
+ * the table grows.
+ *
+ * Unlike CuckooHash, a key maps to a single value: put() replaces the
+ * value of a key that is already in the table. Keys and values may not
+ * be null. Keys are hashed once with the HashStrategy, and the two
+ * halves of the 64-bit hash pick the two buckets.
+ *
+ * Keys other than Strings, Longs and Integers are hashed through their
+ * 32-bit hashCode(), so distinct keys can share the whole 64-bit hash,
+ * and with it both buckets. No table of any size holds more than
+ * 2 * SLOTS such keys, so, like the same-hash rule of CuckooHash, a key
+ * whose buckets are both full of keys with its very hash goes to the
+ * 'overflow' map instead, which get() and remove() check last while it
+ * isn't empty. It is only changed under the stripe locks of the key's
+ * buckets, like the table. Should growing still fail to place every key,
+ * it is tried MAX_GROWS times before put() gives up with an exception.
+ */
+
+@SuppressWarnings("unchecked")
+public class ConcurrentCuckooHash<K, V> {
+
+	private static final int SLOTS = 4;				// slots per bucket
+	private static final int LOCK_STRIPES = 4096;	// locks, a power of two
+	private static final int MAX_BFS = 256;			// buckets searched for a path
+	private static final int MAX_KICKS = 500;		// kicks when growing
+	private static final int MAX_GROWS = 8;			// doublings tried per grow
+	private static final int MAX_SPINS = 64;		// spins before parking
+	private static final long PARK_NANOS = 10000;	// park time of a writer
+
+	// Bits of a lock stripe's word: writer, resize, and the version above
+	private static final long WRITER = 1;
+	private static final long RESIZE = 2;
+	private static final long VERSION = 4;
+
+	private static final VarHandle OBJECTS =
+			MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private volatile Table table;					// the current table
+	private final AtomicLongArray versions;		// lock stripes / versions
+	private final LongAdder count;					// number of elements
+	private final ConcurrentHashMap<Object, Object> overflow =
+			new ConcurrentHashMap<Object, Object>();	// keys of full same-hash buckets
+	private final HashStrategy strategy;
+	private final long seed;
+
+
+	/**
+	 * Class Table
+	 *
+	 * The table's slots as parallel arrays, as in CuckooHash: slot 'i'
+	 * holds the key keys[i] (null if empty), its value values[i] and the
+	 * key's 64-bit hash hashes[i]. The slots of bucket 'b' are the
+	 * indexes b * SLOTS to b * SLOTS + SLOTS - 1.
+	 *
+	 * Keys and values are written with release semantics and read with
+	 * acquire semantics, so a reader that sees a key also sees the fully
+	 * built key object, even without holding a lock.
+	 */
+
+	private static final class Table {
+		final int capacity;							// in buckets
+		final Object[] keys;
+		final Object[] values;
+		final long[] hashes;
+
+		Table(int capacity) {
+			this.capacity = capacity;
+			keys = new Object[capacity * SLOTS];
+			values = new Object[capacity * SLOTS];
+			hashes = new long[capacity * SLOTS];
+		}
+
+		int bucket1(long h) { return (int) (((h >>> 32) * capacity) >>> 32); }
+		int bucket2(long h) { return (int) (((h & 0xFFFFFFFFL) * capacity) >>> 32); }
+
+		// The other candidate bucket of the key with hash 'h', in bucket 'b'
+		int alt(long h, int b) {
+			int b1 = bucket1(h);
+			return b == b1 ? bucket2(h) : b1;
+		}
+
+		Object key(int pos) { return OBJECTS.getAcquire(keys, pos); }
+		Object value(int pos) { return OBJECTS.getAcquire(values, pos); }
+
+		void set(int pos, Object key, Object value, long h) {
+			hashes[pos] = h;
+			OBJECTS.setRelease(values, pos, value);
+			OBJECTS.setRelease(keys, pos, key);
+		}
+
+		void empty(int pos) {
+			OBJECTS.setRelease(keys, pos, null);
+			OBJECTS.setRelease(values, pos, null);
+		}
+
+		// Index of the key's slot in the bucket, or -1
+		int find(int bucket, Object key, long h) {
+			for (int pos = bucket * SLOTS, end = pos + SLOTS; pos < end; ++pos) {
+				if (hashes[pos] == h) {
+					Object k = key(pos);
+					if (k != null && k.equals(key))
+						return pos;
+				}
+			}
+			return -1;
+		}
+
+		// True if every slot of the bucket holds a key with hash 'h'
+		boolean onlyHash(int bucket, long h) {
+			for (int pos = bucket * SLOTS, end = pos + SLOTS; pos < end; ++pos) {
+				if (key(pos) == null || hashes[pos] != h)
+					return false;
+			}
+			return true;
+		}
+
+		int freeSlot(int bucket) {
+			for (int pos = bucket * SLOTS, end = pos + SLOTS; pos < end; ++pos) {
+				if (key(pos) == null)
+					return pos;
+			}
+			return -1;
+		}
+
+		/*
+		 * Inserts into a table no other thread can see yet, kicking out
+		 * random residents as CuckooHash does. Returns false if the kicks
+		 * run out.
+		 */
+		boolean insertPrivate(Object key, Object value, long h) {
+			int bucket = bucket1(h);
+			if (freeSlot(bucket) < 0 && freeSlot(bucket2(h)) >= 0)
+				bucket = bucket2(h);
+			for (int i = 0; i < MAX_KICKS; ++i) {
+				int pos = freeSlot(bucket);
+				if (pos >= 0) {
+					set(pos, key, value, h);
+					return true;
+				}
+				pos = bucket * SLOTS + ThreadLocalRandom.current().nextInt(SLOTS);
+				Object kickedKey = keys[pos];
+				Object kickedValue = values[pos];
+				long kickedHash = hashes[pos];
+				set(pos, key, value, h);
+				key = kickedKey;
+				value = kickedValue;
+				h = kickedHash;
+				bucket = alt(h, bucket);
+			}
+			return false;
+		}
+	}
+
+
+	/**
+	 * Method ConcurrentCuckooHash
+	 *
+	 * Constructors take the initial capacity in buckets, of SLOTS slots
+	 * each, and optionally the HashStrategy (xxHash64 by default).
+	 *
+	 * @param size initial capacity, in buckets
+	 */
+
+	public ConcurrentCuckooHash(int size) {
+		this(size, HashStrategy.Standard.XXHASH64);
+	}
+
+	public ConcurrentCuckooHash(int size, HashStrategy strategy) {
+		if (size < 1)
+			throw new IllegalArgumentException("Invalid capacity");
+		if (strategy == null)
+			throw new IllegalArgumentException("No hash strategy");
+		this.strategy = strategy;
+		this.seed = ThreadLocalRandom.current().nextLong();
+		this.versions = new AtomicLongArray(LOCK_STRIPES);
+		this.count = new LongAdder();
+		this.table = new Table(size);
+	}
+
+	public int size() { return count.intValue(); }
+	public int mapSize() { return table.capacity; }    // used in external testing only
+
+	private long hash(Object key) {
+		if (key instanceof CharSequence)
+			return strategy.hash((CharSequence) key, seed);
+		if (key instanceof Long || key instanceof Integer)
+			return strategy.hash(((Number) key).longValue(), seed);
+		return strategy.hash(key.hashCode(), seed);
+	}
+
+
+	/*
+	 * Locks. A writer locks a stripe by setting its WRITER bit, and
+	 * unlocks it by clearing the bit and moving the version on; grow()
+	 * locks it by setting its RESIZE bit instead, and unlocks it by
+	 * clearing the bit, without touching the version. Either way the
+	 * stripe must be free, with neither bit set, to be locked.
+	 */
+
+	private static int stripe(int bucket) {
+		return bucket & (LOCK_STRIPES - 1);
+	}
+
+	private void lock(int stripe) {
+		acquire(stripe, WRITER);
+	}
+
+	private void unlock(int stripe) {
+		versions.setRelease(stripe, (versions.getPlain(stripe) & -VERSION) + VERSION);
+	}
+
+	private void lockResize(int stripe) {
+		acquire(stripe, RESIZE);
+	}
+
+	private void unlockResize(int stripe) {
+		versions.setRelease(stripe, versions.getPlain(stripe) & ~RESIZE);
+	}
+
+	// Spins for a while, then parks between tries, and parks at once
+	// while the table grows, as that takes far longer than any write
+	private void acquire(int stripe, long bit) {
+		for (int spins = 0; ; ++spins) {
+			long v = versions.get(stripe);
+			if ((v & (WRITER | RESIZE)) == 0 && versions.compareAndSet(stripe, v, v | bit))
+				return;
+			if ((v & RESIZE) != 0 || spins >= MAX_SPINS)
+				LockSupport.parkNanos(PARK_NANOS);
+			else
+				Thread.onSpinWait();
+		}
+	}
+
+	private void lockBoth(int b1, int b2) {
+		int s1 = stripe(b1), s2 = stripe(b2);
+		lock(Math.min(s1, s2));
+		if (s1 != s2)
+			lock(Math.max(s1, s2));
+	}
+
+	private void unlockBoth(int b1, int b2) {
+		int s1 = stripe(b1), s2 = stripe(b2);
+		unlock(s1);
+		if (s1 != s2)
+			unlock(s2);
+	}
+
+
+	/**
+	 * Method get
+	 *
+	 * Lock-free lookup, see 4) above.
+	 *
+	 * @param key Key to search for
+	 * @return the found value or null if it doesn't exist
+	 */
+
+	public V get(K key) {
+		long h = hash(key);
+		while (true) {
+			Table t = table;
+			int b1 = t.bucket1(h), b2 = t.bucket2(h);
+			int s1 = stripe(b1), s2 = stripe(b2);
+			long v1 = versions.get(s1) & ~RESIZE;
+			long v2 = versions.get(s2) & ~RESIZE;
+			if (((v1 | v2) & WRITER) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+
+			Object value = null;
+			int pos = t.find(b1, key, h);
+			if (pos < 0)
+				pos = t.find(b2, key, h);
+			if (pos >= 0)
+				value = t.value(pos);
+			else if (!overflow.isEmpty())
+				value = overflow.get(key);
+
+			// Keep the reads above from moving past the version checks
+			VarHandle.acquireFence();
+			if ((versions.get(s1) & ~RESIZE) == v1 && (versions.get(s2) & ~RESIZE) == v2
+					&& table == t)
+				return (V) value;
+		}
+	}
+
+
+	/**
+	 * Method put
+	 *
+	 * Adds the <key,value> pair, or replaces the value if the key is
+	 * already in the table. If both of the key's buckets are full, makes
+	 * room along a cuckoo path, or grows the table, see 3) above, and
+	 * tries again.
+	 *
+	 * @param key the key of the element to add
+	 * @param value the value of the element to add
+	 * @return the key's previous value, or null
+	 */
+
+	public V put(K key, V value) {
+		if (key == null || value == null)
+			throw new IllegalArgumentException("Null key or value");
+		long h = hash(key);
+		while (true) {
+			Table t = table;
+			int b1 = t.bucket1(h), b2 = t.bucket2(h);
+			lockBoth(b1, b2);
+			try {
+				if (table != t)
+					continue;				// grown meanwhile
+				int pos = t.find(b1, key, h);
+				if (pos < 0)
+					pos = t.find(b2, key, h);
+				if (pos >= 0) {
+					Object old = t.value(pos);
+					OBJECTS.setRelease(t.values, pos, value);
+					return (V) old;
+				}
+				if (!overflow.isEmpty() && overflow.containsKey(key))
+					return (V) overflow.put(key, value);
+				pos = t.freeSlot(b1);
+				if (pos < 0)
+					pos = t.freeSlot(b2);
+				if (pos >= 0) {
+					t.set(pos, key, value, h);
+					count.increment();
+					return null;
+				}
+
+				// Both buckets are full of keys with this very hash, so no
+				// path or growth makes room, see above
+				if (t.onlyHash(b1, h) && t.onlyHash(b2, h)) {
+					overflow.put(key, value);
+					count.increment();
+					return null;
+				}
+			} finally {
+				unlockBoth(b1, b2);
+			}
+
+			if (!makeRoom(t, b1, b2))
+				grow(t);
+		}
+	}
+
+
+	/*
+	 * Method makeRoom
+	 *
+	 * Searches for a cuckoo path from bucket b1 or b2 to a free slot,
+	 * breadth first, without locks; node 'i' of the search is bucket
+	 * pathBucket[i], reached by kicking the element in slot pathSlot[i]
+	 * of its parent node pathParent[i]. The moves are then made from the
+	 * free end of the path back, each under the locks of its two buckets.
+	 *
+	 * Returns false if no path was found within MAX_BFS buckets. A path
+	 * that has changed by the time a move is made is left half done (the
+	 * moves made so far are still valid), and put() simply tries again.
+	 */
+
+	private boolean makeRoom(Table t, int b1, int b2) {
+		int[] pathBucket = new int[MAX_BFS];
+		int[] pathParent = new int[MAX_BFS];
+		int[] pathSlot = new int[MAX_BFS];
+		pathBucket[0] = b1;
+		pathParent[0] = -1;
+		pathBucket[1] = b2;
+		pathParent[1] = -1;
+		int queued = b1 == b2 ? 1 : 2;
+		int found = -1;
+		for (int n = 0; n < queued && found < 0; ++n) {
+			int bucket = pathBucket[n];
+			for (int s = 0; s < SLOTS; ++s) {
+				int pos = bucket * SLOTS + s;
+				if (t.key(pos) == null) {
+					found = n;
+					break;
+				}
+				if (queued < MAX_BFS) {
+					pathBucket[queued] = t.alt(t.hashes[pos], bucket);
+					pathParent[queued] = n;
+					pathSlot[queued++] = s;
+				}
+			}
+		}
+		if (found < 0)
+			return false;
+
+		for (int n = found; pathParent[n] >= 0; n = pathParent[n]) {
+			int to = pathBucket[n];
+			int from = pathBucket[pathParent[n]];
+			lockBoth(from, to);
+			try {
+				if (table != t)
+					return true;
+				int src = from * SLOTS + pathSlot[n];
+				Object k = t.key(src);
+				int dst = t.freeSlot(to);
+				if (k == null || dst < 0 || t.alt(t.hashes[src], from) != to)
+					return true;
+				t.set(dst, k, t.value(src), t.hashes[src]);
+				t.empty(src);
+			} finally {
+				unlockBoth(from, to);
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Method remove
+	 *
+	 * Removes the key and its value from the table.
+	 *
+	 * @param key the key to remove
+	 * @return the removed value, or null if the key wasn't found
+	 */
+
+	public V remove(K key) {
+		long h = hash(key);
+		while (true) {
+			Table t = table;
+			int b1 = t.bucket1(h), b2 = t.bucket2(h);
+			lockBoth(b1, b2);
+			try {
+				if (table != t)
+					continue;
+				int pos = t.find(b1, key, h);
+				if (pos < 0)
+					pos = t.find(b2, key, h);
+				if (pos < 0) {
+					Object old = overflow.isEmpty() ? null : overflow.remove(key);
+					if (old != null)
+						count.decrement();
+					return (V) old;
+				}
+				Object old = t.value(pos);
+				t.empty(pos);
+				count.decrement();
+				return (V) old;
+			} finally {
+				unlockBoth(b1, b2);
+			}
+		}
+	}
+
+
+	/**
+	 * Method grow
+	 *
+	 * Regrows the table to capacity 2*old capacity + 1 with every stripe
+	 * locked for resizing, unless another thread has already grown it.
+	 * The new table is only published once it is complete, so get() keeps
+	 * reading the old one, undisturbed, until then. Should the kicks run
+	 * out, it starts over with a table twice as big again, up to MAX_GROWS
+	 * times.
+	 */
+
+	private void grow(Table t) {
+		for (int s = 0; s < LOCK_STRIPES; ++s)
+			lockResize(s);
+		try {
+			if (table != t)
+				return;
+			int capacity = t.capacity;
+			Table grown;
+			int grows = 0;
+			do {
+				if (++grows > MAX_GROWS)
+					throw new IllegalStateException("Cuckoo hash table can't place its keys");
+				capacity = (capacity * 2) + 1;
+				grown = new Table(capacity);
+			} while (!copy(t, grown));
+			table = grown;
+		} finally {
+			for (int s = 0; s < LOCK_STRIPES; ++s)
+				unlockResize(s);
+		}
+	}
+
+	private static boolean copy(Table from, Table to) {
+		for (int pos = 0; pos < from.keys.length; ++pos) {
+			Object key = from.keys[pos];
+			if (key != null && !to.insertPrivate(key, from.values[pos], from.hashes[pos]))
+				return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,169 @@
+/******************************************************************
+ *
+ *   Counting Bloom filter, a BloomFilter that also supports remove.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+
+/**
+ * Counting Bloom Filters
+ *
+ * A plain Bloom filter cannot remove an element: clearing its bits could
+ * also clear bits that other elements rely on, which would introduce false
+ * negatives. A counting Bloom filter replaces each bit with a small
+ * counter. add() increments the 'k' counters of an element, remove()
+ * decrements them, and contains() checks that they are all non-zero.
+ *
+ * The counters are 4 bits wide and packed sixteen to a long. With 'k' hash
+ * codes and a sensibly sized filter, the chance of any counter exceeding
+ * 15 is vanishingly small, but it is still handled safely: a counter that
+ * reaches 15 is "saturated" and sticks at 15 -- it is never incremented or
+ * decremented again. Once saturated we no longer know how many elements
+ * share it, so decrementing it could eventually drop it to zero while
+ * elements still rely on it.
+ *
+ * The filter uses the same hashing (BloomFilter.hashCode) and hash schemes
+ * as BloomFilter, so counter 'i' is non-zero exactly when bit 'i' of an
+ * equivalent STANDARD layout BloomFilter would be set.
+ *
+ * The cost is four times the memory of a bit-only filter for the same
+ * number of cells.
+ */
+
+class CountingBloomFilter {
+    private static final int COUNTER_BITS = 4;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final long SATURATED = COUNTER_MASK;     // 15
+
+    private final long[] counters;                  // packed 4-bit counters
+    private final int noHashes;                     // number of hashes
+    private final int hashMask;                     // hash mask
+    private final BloomFilter.HashScheme scheme;    // how hash codes are made
+
+
+    /*
+     * Constructors take the base 2 logarithm of the number of counters and
+     * the number of hash functions, optionally with the HashScheme to use,
+     * just like the first BloomFilter constructor.
+     */
+
+    public CountingBloomFilter(int log2noCounters, int noHashes) {
+        this(log2noCounters, noHashes, BloomFilter.HashScheme.PER_INDEX);
+    }
+
+    public CountingBloomFilter(int log2noCounters, int noHashes,
+                               BloomFilter.HashScheme scheme) {
+        if (log2noCounters < 1 || log2noCounters > 31)
+            throw new IllegalArgumentException("Invalid number of counters");
+        if (noHashes < 1 || noHashes > BloomFilter.MAX_HASHES)
+            throw new IllegalArgumentException("Invalid number of hashes");
+
+        this.counters = new long[(int) Math.max(1, (1L << log2noCounters) >>> 4)];
+        this.noHashes = noHashes;
+        this.hashMask = (int) ((1L << log2noCounters) - 1);
+        this.scheme = scheme;
+    }
+
+    public BloomFilter.HashScheme scheme() { return scheme; }
+
+
+    /*
+     * Counter access, counter 'i' is held in bits (i % 16) * 4 onwards of
+     * long number i / 16.
+     */
+
+    private int counter(int cellNo) {
+        return (int) ((counters[cellNo >>> 4] >>> ((cellNo & 15) << 2)) & COUNTER_MASK);
+    }
+
+    private void increment(int cellNo) {
+        int shift = (cellNo & 15) << 2;
+        long word = counters[cellNo >>> 4];
+        if (((word >>> shift) & COUNTER_MASK) != SATURATED)
+            counters[cellNo >>> 4] = word + (1L << shift);
+    }
+
+    private void decrement(int cellNo) {
+        int shift = (cellNo & 15) << 2;
+        long word = counters[cellNo >>> 4];
+        long count = (word >>> shift) & COUNTER_MASK;
+        if (count != SATURATED && count != 0)
+            counters[cellNo >>> 4] = word - (1L << shift);
+    }
+
+    private int cell(String s, int n, long hc0, long step) {
+        long hc;
+        if (n == 0)
+            hc = hc0;
+        else if (step != 0)
+            hc = hc0 + n * step;
+        else
+            hc = BloomFilter.hashCode(s, n);
+        return (int) (hc) & hashMask;
+    }
+
+    private long step(long hc0) {
+        return scheme == BloomFilter.HashScheme.DOUBLE_HASHING
+                ? BloomFilter.hashStep(hc0) : 0;
+    }
+
+
+    /*
+     * Method add
+     *
+     * Increments the counters of each of the 'k' hash codes of the String.
+     *
+     * @param String - the value to add the to set
+     */
+
+    public void add(String s) {
+        long hc0 = BloomFilter.hashCode(s, 0);
+        long step = step(hc0);
+        for (int n = 0; n < noHashes; n++)
+            increment(cell(s, n, hc0, step));
+    }
+
+
+    /*
+     * Method contains
+     *
+     * @param boolean - false if not in set, else true for most probably in set
+     */
+
+    public boolean contains(String s) {
+        long hc0 = BloomFilter.hashCode(s, 0);
+        long step = step(hc0);
+        for (int n = 0; n < noHashes; n++) {
+            if (counter(cell(s, n, hc0, step)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+
+    /*
+     * Method remove
+     *
+     * Removes the String from the set by decrementing its 'k' counters. If
+     * any of them is already zero, the String is certainly not in the set
+     * and nothing is changed. Only remove Strings that were added: removing
+     * a false positive decrements counters that belong to other elements,
+     * and can then cause false negatives.
+     *
+     * @param String - the value to remove from the set
+     * @return - true if the String was (most probably) in the set
+     */
+
+    public boolean remove(String s) {
+        if (!contains(s))
+            return false;
+        long hc0 = BloomFilter.hashCode(s, 0);
+        long step = step(hc0);
+        for (int n = 0; n < noHashes; n++)
+            decrement(cell(s, n, hc0, step));
+        return true;
+    }
+}
@@ -0,0 +1,318 @@
+/******************************************************************
+ *
+ *   Cuckoo filter, a compact approximate set that supports remove.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Cuckoo Filters
+ *
+ * A cuckoo filter (Fan et al., "Cuckoo Filter: Practically Better Than
+ * Bloom") answers the same question as a Bloom filter, "is this element
+ * most probably in the set?", but it can also remove elements, and at low
+ * false positive rates it needs fewer bits per element than a Bloom
+ * filter, let alone a CountingBloomFilter.
+ *
+ * Instead of setting bits, the filter stores a short fingerprint of each
+ * element, 'f' bits of its hash code, in a table of buckets with 4 slots
+ * each. Like the keys of CuckooHash, every fingerprint has two candidate
+ * buckets, and add() kicks out a resident fingerprint to its alternate
+ * bucket when both candidates are full. The table only holds
+ * fingerprints, not the elements, so the alternate bucket must be
+ * computable from the bucket and the fingerprint alone ("partial-key
+ * cuckoo hashing"):
+ *
+ *      i1 = hash(x),   i2 = (hash(fingerprint) - i1) mod m
+ *
+ * for 'm' buckets. This is its own inverse, i1 = (hash(fingerprint) - i2)
+ * mod m, so either bucket leads to the other. The original paper uses
+ * i1 XOR hash(fingerprint) instead, which needs 'm' to be a power of
+ * two; rounding the table up to one can leave it half empty, while the
+ * subtraction works for any number of buckets.
+ *
+ * contains() reads the (at most) 8 slots of the two buckets. An element
+ * not in the set is a false positive if any of them holds its
+ * fingerprint, so the false positive rate is at most 8 / 2^f; with
+ * 12-bit fingerprints that is about 0.2%. The table fills to about 95%
+ * before add() fails, so the cost is about f / 0.95 bits per element.
+ *
+ * Fingerprints are 8 to 16 bits wide and packed back to back in a long[],
+ * so a bucket of 4 slots takes 4f bits and lies within two longs. The
+ * fingerprint 0 marks an empty slot, and is never used.
+ *
+ * Elements are hashed with BloomFilter.hashCode, like the other filters.
+ */
+
+class CuckooFilter {
+    private static final int SLOTS = 4;             // slots per bucket
+    private static final int MAX_KICKS = 500;       // kicks before giving up
+
+    private final long[] table;             // packed fingerprints
+    private final int fpBits;               // bits per fingerprint
+    private final int fpMask;               // fingerprint mask
+    private final int noBuckets;            // number of buckets
+    private int count;                      // fingerprints stored
+
+    // A fingerprint left over when add() gave up, see method add
+    private int victimFp;
+    private int victimBucket;
+
+
+    /*
+     * Constructors take the number of elements the filter should hold and
+     * the fingerprint size in bits, between 8 and 16. The table is sized
+     * for a load of 95% once 'capacity' elements have been added.
+     */
+
+    public CuckooFilter(int capacity, int fingerprintBits) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid capacity");
+        if (fingerprintBits < 8 || fingerprintBits > 16)
+            throw new IllegalArgumentException("Invalid fingerprint size");
+
+        long buckets = Math.max(1, (long) Math.ceil(capacity / (SLOTS * 0.95)));
+        if (buckets * SLOTS * fingerprintBits > (1L << 36))
+            throw new IllegalArgumentException("Cuckoo filter would be too big");
+
+        this.table = new long[(int) ((buckets * SLOTS * fingerprintBits + 63) >>> 6) + 1];
+        this.fpBits = fingerprintBits;
+        this.fpMask = (1 << fingerprintBits) - 1;
+        this.noBuckets = (int) buckets;
+    }
+
+
+    /*
+     * Method create
+     *
+     * Creates a filter for 'expectedItems' elements with a false positive
+     * rate of at most 'fpp', using the smallest fingerprint that gives
+     * 8 / 2^f <= fpp. Rates below 8 / 2^16 (about 0.012%) can't be met,
+     * and get 16-bit fingerprints.
+     *
+     * @param expectedItems - the number of items the filter will hold
+     * @param fpp - the desired false positive rate, between 0 and 1
+     * @return - the new filter
+     */
+
+    public static CuckooFilter create(int expectedItems, double fpp) {
+        if (!(fpp > 0 && fpp < 1))
+            throw new IllegalArgumentException("Invalid false positive rate");
+        int bits = (int) Math.ceil(Math.log(2 * SLOTS / fpp) / Math.log(2));
+        return new CuckooFilter(expectedItems, Math.max(8, Math.min(16, bits)));
+    }
+
+    public int size() { return count + (victimFp != 0 ? 1 : 0); }
+    public int fingerprintBits() { return fpBits; }
+    public long noBits() { return (long) noBuckets * SLOTS * fpBits; }
+    public double loadFactor() { return (double) size() / ((long) noBuckets * SLOTS); }
+
+
+    /*
+     * Bucket access, slot 's' of bucket 'b' is held in bits
+     * (b * 4 + s) * f onwards of the table.
+     */
+
+    private long bucket(int b) {
+        long bitPos = (long) b * SLOTS * fpBits;
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) bitPos & 63;
+        long bits = table[word] >>> shift;
+        if (shift != 0)
+            bits |= table[word + 1] << (64 - shift);
+        return bits;
+    }
+
+    private int slot(long bucket, int s) {
+        return (int) (bucket >>> (s * fpBits)) & fpMask;
+    }
+
+    private void setSlot(int b, int s, int fp) {
+        long bitPos = ((long) b * SLOTS + s) * fpBits;
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) bitPos & 63;
+        table[word] = (table[word] & ~((long) fpMask << shift)) | ((long) fp << shift);
+        if (shift + fpBits > 64) {
+            int spill = 64 - shift;
+            table[word + 1] = (table[word + 1] & ~((long) fpMask >>> spill))
+                    | ((long) fp >>> spill);
+        }
+    }
+
+    private int indexOf(long bucket, int fp) {
+        for (int s = 0; s < SLOTS; s++) {
+            if (slot(bucket, s) == fp)
+                return s;
+        }
+        return -1;
+    }
+
+
+    /*
+     * Hashing. The upper 32 bits of the hash code pick the first bucket,
+     * mapped onto [0, m) with a multiply and shift as in BloomFilter, and
+     * the lowest 'f' bits are the fingerprint; a fingerprint of 0 is
+     * replaced by 1, as 0 marks an empty slot.
+     */
+
+    private int fingerprint(long hc) {
+        int fp = (int) hc & fpMask;
+        return fp != 0 ? fp : 1;
+    }
+
+    private int firstBucket(long hc) {
+        return (int) (((hc >>> 32) * noBuckets) >>> 32);
+    }
+
+    private int altBucket(int b, int fp) {
+        int alt = firstBucket(BloomFilter.hashStep(fp)) - b;
+        return alt < 0 ? alt + noBuckets : alt;
+    }
+
+
+    /*
+     * Method add
+     *
+     * Stores the element's fingerprint in a free slot of either of its two
+     * buckets. If both are full, a random resident fingerprint of one of
+     * them is kicked out to its alternate bucket, and so on, for up to
+     * MAX_KICKS moves.
+     *
+     * If no free slot is found by then, the filter is full. The
+     * fingerprint still held at that point (usually not the one being
+     * added) is kept aside as the "victim", and checked by contains(), so
+     * neither the new element nor any element already added is lost, and
+     * add() still returns true. While a victim is held, every further
+     * add() fails and returns false, until a remove() makes room for it.
+     *
+     * Adding an element twice stores two copies of its fingerprint, and it
+     * then takes two remove() calls to remove it.
+     *
+     * @param String - the value to add the to set
+     * @return - true if added, false if the filter was already full
+     */
+
+    public boolean add(CharSequence s) {
+        return addHash(BloomFilter.hashCode(s, 0));
+    }
+
+    public boolean add(long key) {
+        return addHash(BloomFilter.hashCode(key, 0));
+    }
+
+    private boolean addHash(long hc) {
+        if (victimFp != 0)
+            return false;
+        int fp = fingerprint(hc);
+        int b1 = firstBucket(hc);
+        int b2 = altBucket(b1, fp);
+        if (insert(b1, fp) || insert(b2, fp)) {
+            count++;
+            return true;
+        }
+
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int b = rnd.nextBoolean() ? b1 : b2;
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int s = rnd.nextInt(SLOTS);
+            int kicked = slot(bucket(b), s);
+            setSlot(b, s, fp);
+            fp = kicked;
+            b = altBucket(b, fp);
+            if (insert(b, fp)) {
+                count++;
+                return true;
+            }
+        }
+        // The new fingerprint is in the table, or is the victim itself
+        victimFp = fp;
+        victimBucket = b;
+        return true;
+    }
+
+    private boolean insert(int b, int fp) {
+        int s = indexOf(bucket(b), 0);
+        if (s < 0)
+            return false;
+        setSlot(b, s, fp);
+        return true;
+    }
+
+
+    /*
+     * Method contains
+     *
+     * @param boolean - false if not in set, else true for most probably in set
+     */
+
+    public boolean contains(CharSequence s) {
+        return containsHash(BloomFilter.hashCode(s, 0));
+    }
+
+    public boolean contains(long key) {
+        return containsHash(BloomFilter.hashCode(key, 0));
+    }
+
+    private boolean containsHash(long hc) {
+        int fp = fingerprint(hc);
+        int b1 = firstBucket(hc);
+        int b2 = altBucket(b1, fp);
+        if (indexOf(bucket(b1), fp) >= 0 || indexOf(bucket(b2), fp) >= 0)
+            return true;
+        return victimFp == fp && (victimBucket == b1 || victimBucket == b2);
+    }
+
+
+    /*
+     * Method remove
+     *
+     * Removes one copy of the element's fingerprint. Only remove elements
+     * that were added: removing a false positive removes the fingerprint
+     * of another element, which then becomes a false negative.
+     *
+     * @param String - the value to remove from the set
+     * @return - true if the element was (most probably) in the set
+     */
+
+    public boolean remove(CharSequence s) {
+        return removeHash(BloomFilter.hashCode(s, 0));
+    }
+
+    public boolean remove(long key) {
+        return removeHash(BloomFilter.hashCode(key, 0));
+    }
+
+    private boolean removeHash(long hc) {
+        int fp = fingerprint(hc);
+        int b1 = firstBucket(hc);
+        int b2 = altBucket(b1, fp);
+        if (victimFp == fp && (victimBucket == b1 || victimBucket == b2)) {
+            victimFp = 0;
+            return true;
+        }
+        if (!delete(b1, fp) && !delete(b2, fp))
+            return false;
+        count--;
+
+        // A slot is free again, so the victim can be placed
+        if (victimFp != 0 && (insert(victimBucket, victimFp)
+                || insert(altBucket(victimBucket, victimFp), victimFp))) {
+            victimFp = 0;
+            count++;
+        }
+        return true;
+    }
+
+    private boolean delete(int b, int fp) {
+        int s = indexOf(bucket(b), fp);
+        if (s < 0)
+            return false;
+        setSlot(b, s, 0);
+        return true;
+    }
+}
@@ -8,9 +8,12 @@
  ********************************************************************/
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.lang.Math;
 
 
@@ -28,6 +31,12 @@ import java.lang.Math;
  * Constructor:
  *    CuckooHash( size )  - Where size is the initial bucket size 
  *                          of the hashmap
+ *    CuckooHash( size, strategy )
+ *                        - As above, hashing keys with the passed
+ *                          HashStrategy rather than their hashCode()
+ *    CuckooHash( size, strategy, slotsPerBucket )
+ *                        - As above, with each bucket holding up to
+ *                          'slotsPerBucket' elements
  *
  * Public Methods:
  *    int     size()	   - The number of elements, <key,value> pairs,
@@ -49,16 +58,116 @@ import java.lang.Math;
 @SuppressWarnings("unchecked")
 public class CuckooHash<K, V> {
   
-	private int CAPACITY;  					// Hashmap capacity
-	private Bucket<K, V>[] table;			// Hashmap table
+	private int CAPACITY;  					// Hashmap capacity, in buckets
+	private int slots = 1;					// slots (elements) per bucket
+	private static final int KICK_FACTOR = 5;	// kicks per bit of table size
+	private static final int STASH_SIZE = 4;	// failed inserts kept aside
+	private static final int SPARSE = 8;		// buckets per element not to grow past
+	private static final int MIGRATE_STEP = 8;	// old slots moved per operation
+	private Object[] keys;					// Hashmap table, keys (null if empty)
+	private Object[] values;				// ... the value of each key
+	private int[] hashes;					// ... and each key's hashCode()
 	private int a = 37, b = 17;				// Constants used in h2(key)
+	private List<Bucket<K, V>> stash;		// Elements that can't be placed
+	private int overflowed;					// ... left over from kicks
+	private Map<K, List<V>> extras;			// values beyond 'slots' per key
+	private int extraCount;					// ... and their number
+	private int count;						// <key,value> pairs held
+	private HashStrategy strategy;			// null for the original hashes
+	private long seed1, seed2;				// hash seeds, with a HashStrategy
+	private Object[] oldKeys;				// Table being migrated from, or null
+	private Object[] oldValues;
+	private int[] oldHashes;
+	private int oldCapacity;				// ... its capacity, in buckets
+	private int migrated;					// ... and its next slot to move
+
+
+	/*
+	 * Table layout
+	 *
+	 * Rather than one Bucket object per element, the table is held in
+	 * three parallel arrays: slot 'i' holds the key keys[i] (null if the
+	 * slot is empty), its value values[i] and the key's hash code
+	 * hashes[i]. This saves the object header and the pointer to follow
+	 * for every element, and a lookup compares the cached hash code of a
+	 * slot first, only calling equals(), and touching the key object at
+	 * all, when the hash codes match. The cached hash codes also let
+	 * kicked-out keys be placed again without calling hashCode().
+	 *
+	 * Bucketized mode
+	 *
+	 * With one slot per bucket, the two candidate buckets of an element
+	 * fill up quickly: insertions start running into cycles once the
+	 * table is about half full, and each rehash() then doubles it. When
+	 * each bucket has several slots (4 is the usual choice), an element
+	 * can go in any free slot of either of its buckets, and a kick only
+	 * happens when all of them are full. The table then fills to over 90%
+	 * before a cycle is found. The slots of bucket 'b' are the array
+	 * indexes b * slots to b * slots + slots - 1, so a bucket's hash codes
+	 * lie next to each other in memory, and get() checks at most
+	 * 2 * slots slots in two buckets.
+	 *
+	 * Bounded kicks and the stash
+	 *
+	 * The original put() allows CAPACITY kicks before it assumes a cycle,
+	 * so the cost of an unlucky insert grows with the size of the table.
+	 * With a HashStrategy, put() instead gives up after KICK_FACTOR * log2
+	 * of the number of slots. Walks that long are rare unless the table is
+	 * close to full, and the element left over from a failed walk is kept
+	 * aside in the stash, up to STASH_SIZE elements, rather than growing
+	 * the table at once (Kirsch, Mitzenmacher and Wieder, "More Robust
+	 * Hashing: Cuckoo Hashing with a Stash"). Only once the stash is full
+	 * does the table grow; rehash() then tries to place the stashed
+	 * elements in the new table. get() and remove() check the stash after
+	 * the two buckets.
+	 *
+	 * Only elements left over from kicks ('overflowed' of them) count
+	 * towards STASH_SIZE. The elements kept aside by the same-hash rule
+	 * of method put, which growing the table can't place, go to 'extras'
+	 * (see below) instead.
+	 *
+	 * Several values per key
+	 *
+	 * A key can be added with several values (see method put), and every
+	 * copy of a key goes to the same two buckets. With one slot per
+	 * bucket, two copies fill both, and no other key that shares one of
+	 * them can ever be placed, however big the table grows. With a
+	 * HashStrategy, the table therefore holds at most 'slots' copies of a
+	 * key, and any further values are kept in 'extras', a map from the key
+	 * to its other values, which get() and remove() check last.
+	 *
+	 * Without a HashStrategy, put() keeps growing the table on a cycle, as
+	 * it always has, but only while the table has fewer than SPARSE
+	 * buckets per element. Past that, growing is not what will make room,
+	 * and the element left over from the kicks goes to 'extras' instead,
+	 * so the table can no longer double without bound.
+	 *
+	 * Incremental growth
+	 *
+	 * rehash() moves every element into the grown table at once, so the
+	 * put() that triggers it stalls for as long as that takes, seconds for
+	 * a large table. With a HashStrategy the table instead grows
+	 * incrementally: the new table is allocated, the old one is kept
+	 * alongside it, and every put(), get() and remove() first moves the
+	 * next MIGRATE_STEP slots of the old table over. Until the old table
+	 * is empty, lookups check both tables. No single operation moves more
+	 * than MIGRATE_STEP elements (plus the few in the stash when the table
+	 * grows), and an element that can't be placed in the new table goes
+	 * to the stash rather than making put() recurse.
+	 *
+	 * The new table is twice as big, so it is at most about half full when
+	 * migration starts, and migration ends after (old slots / MIGRATE_STEP)
+	 * operations, long before the new table can fill up. Should it fill up
+	 * all the same, the rest of the old table is moved at once before the
+	 * table grows again.
+	 */
 
 
 	/**
 	 * Class Bucket
 	 *
 	 * Inner bucket class which represents a <key,value> pair 
-     * within the hash map.
+     * kept in the stash (see method put).
 	 *
 	 * @param <K> - type of key
 	 * @param <V> - type of value
@@ -67,6 +176,7 @@ public class CuckooHash<K, V> {
 	private class Bucket<K, V> {
 		private K bucKey = null;
 		private V value = null;
+		private boolean overflow;		// left over from kicks
 		
 		public Bucket(K k, V v) {
 			bucKey = k; 
@@ -86,12 +196,41 @@ public class CuckooHash<K, V> {
 
 	/*
 	 * Hash functions, hash1 and hash2
+	 *
+	 * Both of the original hash functions are derived from the key's
+	 * hashCode(), so keys with equal hash codes always share both of their
+	 * buckets, and hash2 is hash1 shifted by a constant, so keys that
+	 * collide in one also collide in the other. With a HashStrategy, hash1
+	 * and hash2 are instead two independent hashes of the key: Strings and
+	 * other CharSequences are hashed by their chars, Longs and Integers by
+	 * their value, and any other key by its hashCode(). The two seeds are
+	 * picked at random for each table, so no fixed set of keys collides in
+	 * every table, and differ in their lowest bit, so that they pick
+	 * different hash functions even of the LCG strategy. The 64-bit hash is
+	 * mapped onto [0, CAPACITY) with a multiply and shift rather than a
+	 * division.
 	 */
-	private int hash1(K key) 	{
-		return Math.abs(key.hashCode()) % CAPACITY;
+	private int hash1(Object key, int hc) 	{
+		if (strategy != null)
+			return bucket(keyHash(key, hc, seed1));
+		return (int) (Math.abs((long) hc) % CAPACITY);
+	}
+	private int hash2(Object key, int hc) 	{
+		if (strategy != null)
+			return bucket(keyHash(key, hc, seed2));
+		return (int) ((a * b + Math.abs((long) hc)) % CAPACITY);
+	}
+
+	private long keyHash(Object key, int hc, long seed) {
+		if (key instanceof CharSequence)
+			return strategy.hash((CharSequence) key, seed);
+		if (key instanceof Long || key instanceof Integer)
+			return strategy.hash(((Number) key).longValue(), seed);
+		return strategy.hash(hc, seed);
 	}
-	private int hash2(K key) 	{
-		return (a * b + Math.abs(key.hashCode())) % CAPACITY;
+
+	private int bucket(long hash) {
+		return (int) (((hash >>> 32) * CAPACITY) >>> 32);
 	}
 
 
@@ -108,24 +247,41 @@ public class CuckooHash<K, V> {
 
 	public CuckooHash(int size) {
 		CAPACITY = size;
-		table = new Bucket[CAPACITY];
+		allocate();
+		stash = new ArrayList<Bucket<K, V>>();
+		extras = new HashMap<K, List<V>>();
+	}
+
+	public CuckooHash(int size, HashStrategy strategy) {
+		this(size, strategy, 1);
+	}
+
+	public CuckooHash(int size, HashStrategy strategy, int slotsPerBucket) {
+		if (strategy == null)
+			throw new IllegalArgumentException("No hash strategy");
+		if (slotsPerBucket < 1 || slotsPerBucket > 8)
+			throw new IllegalArgumentException("Invalid number of slots per bucket");
+		CAPACITY = size;
+		slots = slotsPerBucket;
+		this.strategy = strategy;
+		seed1 = ThreadLocalRandom.current().nextLong();
+		seed2 = seed1 ^ 1;
+		allocate();
+		stash = new ArrayList<Bucket<K, V>>();
+		extras = new HashMap<K, List<V>>();
 	}						  
 
 
 	/**
 	 * Method size
 	 *
-	 * Get the number of elements in the table; the time complexity is O(n).
+	 * Get the number of elements in the table, kept up to date by put()
+	 * and remove(); the time complexity is O(1).
 	 *
 	 * @return total key-value pairs
 	 */
 
 	public int size() {
-		int count = 0;
-		for (int i=0; i<CAPACITY; ++i) {
-			if (table[i] != null)
-				count++; 	
-		}
 		return count;
 	}
 
@@ -139,10 +295,22 @@ public class CuckooHash<K, V> {
 	 */
 
 	public void clear() {
-		table = new Bucket[CAPACITY]; 
+		allocate();
+		clearStash();
+		extras.clear();
+		extraCount = 0;
+		count = 0;
+		endMigration();
+	}
+
+	private void allocate() {
+		keys = new Object[CAPACITY * slots];
+		values = new Object[CAPACITY * slots];
+		hashes = new int[CAPACITY * slots];
 	}
 
 	public int mapSize() { return CAPACITY; }    // used in external testing only
+	public int slotsPerBucket() { return slots; }
 
 
 	/**
@@ -155,11 +323,19 @@ public class CuckooHash<K, V> {
 
 	public List<V> values() {
 		List<V> allValues = new ArrayList<V>(); 
-		for (int i=0; i<CAPACITY; ++i) {
-			if (table[i] != null) {
-				allValues.add(table[i].getValue());
+		for (int i=0; i<keys.length; ++i) {
+			if (keys[i] != null) {
+				allValues.add((V) values[i]);
 			}
 		}
+		for (int i = migrated; oldKeys != null && i < oldKeys.length; ++i) {
+			if (oldKeys[i] != null)
+				allValues.add((V) oldValues[i]);
+		}
+		for (Bucket<K, V> bucket : stash)
+			allValues.add(bucket.getValue());
+		for (List<V> more : extras.values())
+			allValues.addAll(more);
 		return allValues;
 	}
 
@@ -174,11 +350,18 @@ public class CuckooHash<K, V> {
 
 	public Set<K> keys() {
 		Set<K> allKeys = new HashSet<K>();
-		for (int i=0; i<CAPACITY; ++i) {
-			if (table[i] != null) {
-				allKeys.add(table[i].getBucKey());
+		for (int i=0; i<keys.length; ++i) {
+			if (keys[i] != null) {
+				allKeys.add((K) keys[i]);
 			}
 		}
+		for (int i = migrated; oldKeys != null && i < oldKeys.length; ++i) {
+			if (oldKeys[i] != null)
+				allKeys.add((K) oldKeys[i]);
+		}
+		for (Bucket<K, V> bucket : stash)
+			allKeys.add(bucket.getBucKey());
+		allKeys.addAll(extras.keySet());
 		return allKeys;
 	}
 
@@ -249,20 +432,203 @@ public class CuckooHash<K, V> {
 	 */
 
  	public void put(K key, V value) {
-		int bucket1 = hash1(key);
+		if (oldKeys != null)
+			migrate();
+		int hc = key.hashCode();
+		int pos1 = hash1(key, hc);
+		int pos2 = hash2(key, hc);
+
+		// The <key,value> pair is already in the table, nothing to do
+		if (find(pos1, key, hc, value) >= 0 || find(pos2, key, hc, value) >= 0
+				|| findOld(key, hc, value) >= 0 || stashed(key, value)
+				|| (extraCount > 0 && hasExtra(key, value)))
+			return;
+		count++;
+
+		// The table already holds 'slots' copies of this key, see
+		// "Several values per key" above
+		if (strategy != null && copies(pos1, pos2, key, hc) >= slots) {
+			addExtra(key, value);
+			return;
+		}
 
-		int bucket2 = hash2(key);
-		return;
+		// Both buckets already hold keys with the same hash code as this
+		// key. Both hash functions only depend on the hash code, so the
+		// three can never be placed in two buckets, whatever the table size:
+		// rather than growing the table forever, keep the element aside.
+		// (With a HashStrategy the same applies to keys with equal hashes.)
+		if (pos1 != pos2 && sameHash(pos1, key, hc) && sameHash(pos2, key, hc)) {
+			addExtra(key, value);
+			return;
+		}
+
+		Bucket<K, V> left = place(key, value, hc, pos1, pos2);
+		if (left == null)
+			return;
+
+		// Keep the element left over from the last kick in the stash if
+		// there is room, or else assume a cycle, grow the table and place
+		// it
+		if (strategy != null && overflowed < STASH_SIZE) {
+			overflow(left);
+			return;
+		}
+		if (strategy != null) {
+			grow();
+			insert(left.getBucKey(), left.getValue(), left.getBucKey().hashCode());
+			return;
+		}
+		// Without a HashStrategy, grow only while the table isn't sparse,
+		// see "Several values per key" above
+		if (CAPACITY > SPARSE * count) {
+			addExtra(left.getBucKey(), left.getValue());
+			return;
+		}
+		rehash();
+		reinsert(left.getBucKey(), left.getValue());
 	}
 
+	/*
+	 * Places the element in a free slot of bucket pos1 or pos2 of the
+	 * table, kicking out resident elements as described above, and returns
+	 * the element still left over when the kicks run out, or null.
+	 */
+	private Bucket<K, V> place(Object key, Object value, int hc, int pos1, int pos2) {
+		Object curKey = key;
+		Object curValue = value;
+		int curHash = hc;
+		int bucket = pos1;
+		if (slots > 1 && freeSlot(pos1) < 0 && freeSlot(pos2) >= 0)
+			bucket = pos2;
+		int maxKicks = strategy == null && CAPACITY <= SPARSE * count ? CAPACITY
+				: KICK_FACTOR * (32 - Integer.numberOfLeadingZeros(keys.length));
+		for (int i = 0; i < maxKicks; ++i) {
+			int pos = freeSlot(bucket);
+			if (pos >= 0) {
+				keys[pos] = curKey;
+				values[pos] = curValue;
+				hashes[pos] = curHash;
+				return null;
+			}
 
+			// Kick out a resident element, and move it on to its
+			// alternate location
+			pos = bucket * slots
+					+ (slots == 1 ? 0 : ThreadLocalRandom.current().nextInt(slots));
+			Object kickedKey = keys[pos];
+			Object kickedValue = values[pos];
+			int kickedHash = hashes[pos];
+			keys[pos] = curKey;
+			values[pos] = curValue;
+			hashes[pos] = curHash;
+			curKey = kickedKey;
+			curValue = kickedValue;
+			curHash = kickedHash;
+			int alt1 = hash1(curKey, curHash);
+			bucket = (bucket == alt1) ? hash2(curKey, curHash) : alt1;
+		}
+		return new Bucket<K, V>((K) curKey, (V) curValue);
+	}
 
+	// Places an element, or failing that stashes it
+	private void insert(Object key, Object value, int hc) {
+		int pos1 = hash1(key, hc);
+		int pos2 = hash2(key, hc);
+		if (copies(pos1, pos2, key, hc) >= slots) {
+			addExtra((K) key, (V) value);
+			return;
+		}
+		if (pos1 != pos2 && sameHash(pos1, key, hc) && sameHash(pos2, key, hc)) {
+			addExtra((K) key, (V) value);
+			return;
+		}
+		Bucket<K, V> left = place(key, value, hc, pos1, pos2);
+		if (left != null)
+			overflow(left);
+	}
 
-		// ADD YOUR CODE HERE - DO NOT FORGET TO ADD YOUR NAME AT TOP OF FILE.
-		// Also make sure you read this method's prologue above, it should help
-		// you. Especially the two HINTS in the prologue.
+	private void overflow(Bucket<K, V> left) {
+		left.overflow = true;
+		overflowed++;
+		stash.add(left);
+	}
 
+	private int copies(int pos1, int pos2, Object key, int hc) {
+		int n = 0;
+		for (int pos = pos1 * slots, end = pos + slots; pos < end; ++pos) {
+			if (holds(pos, key, hc))
+				n++;
+		}
+		for (int pos = pos2 * slots, end = pos + slots; pos1 != pos2 && pos < end; ++pos) {
+			if (holds(pos, key, hc))
+				n++;
+		}
+		return n;
+	}
+
+	private void addExtra(K key, V value) {
+		List<V> more = extras.get(key);
+		if (more == null) {
+			more = new ArrayList<V>(2);
+			extras.put(key, more);
+		}
+		more.add(value);
+		extraCount++;
+	}
 
+	private boolean hasExtra(Object key, Object value) {
+		List<V> more = extras.get(key);
+		return more != null && more.contains(value);
+	}
+
+	private void clearStash() {
+		stash.clear();
+		overflowed = 0;
+	}
+
+	private boolean stashed(Object key, Object value) {
+		for (Bucket<K, V> bucket : stash) {
+			if (bucket.getBucKey().equals(key) && bucket.getValue().equals(value))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean holds(int pos, Object key, int hc) {
+		return keys[pos] != null && hashes[pos] == hc && keys[pos].equals(key);
+	}
+
+	/*
+	 * Slot lookups within a bucket, returning the slot's index in the
+	 * arrays, or -1 if there is none. 'value' may be null to match any.
+	 */
+	private int find(int bucket, Object key, int hc, Object value) {
+		for (int pos = bucket * slots, end = pos + slots; pos < end; ++pos) {
+			if (holds(pos, key, hc) && (value == null || values[pos].equals(value)))
+				return pos;
+		}
+		return -1;
+	}
+
+	private int freeSlot(int bucket) {
+		for (int pos = bucket * slots, end = pos + slots; pos < end; ++pos) {
+			if (keys[pos] == null)
+				return pos;
+		}
+		return -1;
+	}
+
+	// True if every slot of the bucket holds a key with the same hash
+	private boolean sameHash(int bucket, Object key, int hc) {
+		for (int pos = bucket * slots, end = pos + slots; pos < end; ++pos) {
+			if (keys[pos] == null || hashes[pos] != hc)
+				return false;
+			if (strategy != null && (keyHash(keys[pos], hc, seed1) != keyHash(key, hc, seed1)
+					|| keyHash(keys[pos], hc, seed2) != keyHash(key, hc, seed2)))
+				return false;
+		}
+		return true;
+	}
 
 
 	/**
@@ -276,12 +642,26 @@ public class CuckooHash<K, V> {
 	 */
 
 	public V get(K key) {
-		int pos1 = hash1(key);
-		int pos2 = hash2(key);
-		if (table[pos1] != null && table[pos1].getBucKey().equals(key))
-			return table[pos1].getValue();
-		else if (table[pos2] != null && table[pos2].getBucKey().equals(key))
-			return table[pos2].getValue();
+		if (oldKeys != null)
+			migrate();
+		int hc = key.hashCode();
+		int pos = find(hash1(key, hc), key, hc, null);
+		if (pos < 0)
+			pos = find(hash2(key, hc), key, hc, null);
+		if (pos >= 0)
+			return (V) values[pos];
+		pos = findOld(key, hc, null);
+		if (pos >= 0)
+			return (V) oldValues[pos];
+		for (Bucket<K, V> bucket : stash) {
+			if (bucket.getBucKey().equals(key))
+				return bucket.getValue();
+		}
+		if (extraCount > 0) {
+			List<V> more = extras.get(key);
+			if (more != null)
+				return more.get(0);
+		}
 		return null;
 	}
 
@@ -297,20 +677,54 @@ public class CuckooHash<K, V> {
 	 * @return successful removal
 	 */
 	public boolean remove(K key, V value) {
-		int pos1 = hash1(key);
-		int pos2 = hash2(key);
-		if (table[pos1] != null && table[pos1].getValue().equals(value)) {
-			table[pos1] = null;
+		if (oldKeys != null)
+			migrate();
+		int hc = key.hashCode();
+		int pos = find(hash1(key, hc), key, hc, value);
+		if (pos < 0)
+			pos = find(hash2(key, hc), key, hc, value);
+		if (pos >= 0) {
+			emptySlot(pos);
+			count--;
 			return true;
 		}
-		else if (table[pos2] != null && table[pos2].getValue().equals(value)) {
-			table[pos2] = null;
+		pos = findOld(key, hc, value);
+		if (pos >= 0) {
+			oldKeys[pos] = null;
+			oldValues[pos] = null;
+			count--;
 			return true;
 		}
+		for (int i = 0; i < stash.size(); ++i) {
+			Bucket<K, V> bucket = stash.get(i);
+			if (bucket.getBucKey().equals(key) && bucket.getValue().equals(value)) {
+				stash.remove(i);
+				if (bucket.overflow)
+					overflowed--;
+				count--;
+				return true;
+			}
+		}
+		if (extraCount > 0) {
+			List<V> more = extras.get(key);
+			if (more != null && more.remove(value)) {
+				if (more.isEmpty())
+					extras.remove(key);
+				extraCount--;
+				count--;
+				return true;
+			}
+		}
 		return false;
 	}
 
 
+	private void emptySlot(int pos) {
+		keys[pos] = null;
+		values[pos] = null;
+	}
+
+
 	/**
 	 * Method printTable
 	 *
@@ -325,12 +739,37 @@ public class CuckooHash<K, V> {
 	public String printTable() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("[ ");
-		for (int i=0; i<CAPACITY; ++i) {
-			if (table[i] != null) {
+		for (int i=0; i<keys.length; ++i) {
+			if (keys[i] != null) {
+				sb.append("<");
+				sb.append(keys[i]); //key
+				sb.append(", ");
+				sb.append(values[i]); //value
+				sb.append("> ");
+			}
+		}
+		for (int i = migrated; oldKeys != null && i < oldKeys.length; ++i) {
+			if (oldKeys[i] != null) {
 				sb.append("<");
-				sb.append(table[i].getBucKey()); //key
+				sb.append(oldKeys[i]); //key
 				sb.append(", ");
-				sb.append(table[i].getValue()); //value
+				sb.append(oldValues[i]); //value
+				sb.append("> ");
+			}
+		}
+		for (Bucket<K, V> bucket : stash) {
+			sb.append("<");
+			sb.append(bucket.getBucKey()); //key
+			sb.append(", ");
+			sb.append(bucket.getValue()); //value
+			sb.append("> ");
+		}
+		for (Map.Entry<K, List<V>> entry : extras.entrySet()) {
+			for (V value : entry.getValue()) {
+				sb.append("<");
+				sb.append(entry.getKey()); //key
+				sb.append(", ");
+				sb.append(value); //value
 				sb.append("> ");
 			}
 		}
@@ -343,25 +782,122 @@ public class CuckooHash<K, V> {
 	 * Method rehash
 	 *
 	 * This method regrows the hashtable to capacity: 2*old capacity + 1 
-     * and reinserts (rehashes) all the <key,value> pairs.
+     * and reinserts (rehashes) all the <key,value> pairs, those in the
+     * stash last.
 	 *
 	 * This method invokes the 'put' method, so it is possible that 
      * another cycle is found when rehashing the hashmap. If this occurs,
-     * this function can be invoked recursively via the 'put' method.
+     * this function can be invoked recursively via the 'put' method,
+     * until the table is sparse, see "Several values per key" above.
+	 *
+	 * Only used without a HashStrategy, see method grow otherwise.
 	 */
 
 	private void rehash() {
-		Bucket<K, V>[] tableCopy = table.clone();
-		int OLD_CAPACITY = CAPACITY;
+		Object[] keysCopy = keys;
+		Object[] valuesCopy = values;
+		List<Bucket<K, V>> stashCopy = new ArrayList<Bucket<K, V>>(stash);
 		CAPACITY = (CAPACITY * 2) + 1;
-		table = new Bucket[CAPACITY];
+		allocate();
+		clearStash();
 
-		for (int i=0; i<OLD_CAPACITY; ++i) {
-			if (tableCopy[i] != null) {
-				put(tableCopy[i].getBucKey(), tableCopy[i].getValue());
+		for (int i=0; i<keysCopy.length; ++i) {
+			if (keysCopy[i] != null) {
+				reinsert((K) keysCopy[i], (V) valuesCopy[i]);
 			}
 		}
+		for (Bucket<K, V> bucket : stashCopy)
+			reinsert(bucket.getBucKey(), bucket.getValue());
 	}
 
-}
+	/*
+	 * Puts an element that is counted already. put() counts every element
+	 * it adds, so the count is taken back straight away, and the sparse
+	 * check and kick bound of put() see the real number of elements all
+	 * through the rehash.
+	 */
+	private void reinsert(K key, V value) {
+		put(key, value);
+		count--;
+	}
+
+
+	/**
+	 * Method grow
+	 *
+	 * Starts growing the table incrementally (see "Incremental growth"
+	 * above): the table becomes the old table, and a new table of
+	 * capacity 2*old capacity + 1 takes its place. The elements in the
+	 * stash are placed in the new table straight away.
+	 */
+
+	private void grow() {
+		if (oldKeys != null)
+			finishMigration();
+		oldKeys = keys;
+		oldValues = values;
+		oldHashes = hashes;
+		oldCapacity = CAPACITY;
+		migrated = 0;
+		CAPACITY = (CAPACITY * 2) + 1;
+		allocate();
+
+		List<Bucket<K, V>> stashCopy = new ArrayList<Bucket<K, V>>(stash);
+		clearStash();
+		for (Bucket<K, V> bucket : stashCopy)
+			insert(bucket.getBucKey(), bucket.getValue(), bucket.getBucKey().hashCode());
+	}
 
+	// Moves the next MIGRATE_STEP slots of the old table to the new one
+	private void migrate() {
+		int end = Math.min(migrated + MIGRATE_STEP, oldKeys.length);
+		for (; migrated < end; ++migrated) {
+			Object key = oldKeys[migrated];
+			if (key != null) {
+				oldKeys[migrated] = null;
+				insert(key, oldValues[migrated], oldHashes[migrated]);
+			}
+		}
+		if (migrated == oldKeys.length)
+			endMigration();
+	}
+
+	private void finishMigration() {
+		while (oldKeys != null)
+			migrate();
+	}
+
+	private void endMigration() {
+		oldKeys = null;
+		oldValues = null;
+		oldHashes = null;
+		migrated = 0;
+	}
+
+	/*
+	 * Looks the element up in the old table, returning the slot's index
+	 * in the old arrays, or -1 if there is none (or no old table).
+	 */
+	private int findOld(Object key, int hc, Object value) {
+		if (oldKeys == null)
+			return -1;
+		int pos = findOld(oldBucket(keyHash(key, hc, seed1)), key, hc, value);
+		if (pos < 0)
+			pos = findOld(oldBucket(keyHash(key, hc, seed2)), key, hc, value);
+		return pos;
+	}
+
+	private int findOld(int bucket, Object key, int hc, Object value) {
+		for (int pos = bucket * slots, end = pos + slots; pos < end; ++pos) {
+			if (oldKeys[pos] != null && oldHashes[pos] == hc && oldKeys[pos].equals(key)
+					&& (value == null || oldValues[pos].equals(value)))
+				return pos;
+		}
+		return -1;
+	}
+
+	private int oldBucket(long hash) {
+		return (int) (((hash >>> 32) * oldCapacity) >>> 32);
+	}
+
+}
@@ -0,0 +1,238 @@
+/******************************************************************
+ *
+ *   Regression tests for CuckooHash, beyond those in Main.
+ *
+ *   Note, additional comments provided throughout this source code
+ *   is for educational purposes
+ *
+ ********************************************************************/
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * CuckooHash Regression Tests
+ *
+ * Run with 'java CuckooHashTest'; prints each test's result, and exits
+ * with status 1 if any failed.
+ */
+
+public class CuckooHashTest {
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		for (HashStrategy strategy : HashStrategy.Standard.values()) {
+			for (int slots : new int[] { 1, 2, 4 }) {
+				severalValuesPerKey(strategy, slots);
+				severalValuesPerKeyChurn(strategy, slots);
+			}
+		}
+		for (int values = 1; values <= 4; values++)
+			severalValuesPerKeyOriginal(values);
+		for (int keys : new int[] { 12, 200 })
+			equalHashCodesConcurrent(keys);
+		for (int values : new int[] { 9, 200 })
+			severalValuesPerKeyPrimitive(values);
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	// A key whose hashCode() is always 0, as with a poor hashCode()
+	private static final class ZeroHash {
+		private final int id;
+
+		ZeroHash(int id) { this.id = id; }
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof ZeroHash && ((ZeroHash) o).id == id;
+		}
+
+		@Override
+		public int hashCode() { return 0; }
+	}
+
+	private static void check(String test, boolean passed) {
+		System.out.println(test + (passed ? " - PASSED" : " - FAILED"));
+		if (!passed)
+			failures++;
+	}
+
+
+	/*
+	 * Several values per key must neither be lost nor make the table
+	 * grow: 50 keys with 4 values each used to grow a table of 1 slot per
+	 * bucket to over 12000 buckets.
+	 */
+
+	private static void severalValuesPerKey(HashStrategy strategy, int slots) {
+		CuckooHash<Integer, Integer> table = new CuckooHash<Integer, Integer>(2, strategy, slots);
+		for (int key = 0; key < 50; key++) {
+			for (int value = 0; value < 4; value++)
+				table.put(key, value);
+		}
+
+		boolean passed = table.size() == 200 && table.mapSize() * slots <= 1024;
+		for (int key = 0; passed && key < 50; key++) {
+			Integer value = table.get(key);
+			passed = value != null && value >= 0 && value < 4;
+		}
+		for (int key = 0; passed && key < 50; key++) {
+			for (int value = 0; passed && value < 4; value++)
+				passed = table.remove(key, value);
+		}
+		passed = passed && table.size() == 0 && table.get(0) == null;
+		check("Several values per key, " + strategy + ", " + slots + " slots", passed);
+	}
+
+
+	/*
+	 * Random puts and removes of <key,value> pairs with 4 values per key,
+	 * checked against a set of the pairs. The table must stay in
+	 * proportion to the number of keys in it.
+	 */
+
+	private static void severalValuesPerKeyChurn(HashStrategy strategy, int slots) {
+		CuckooHash<Integer, Integer> table = new CuckooHash<Integer, Integer>(2, strategy, slots);
+		Map<Integer, Set<Integer>> pairs = new HashMap<Integer, Set<Integer>>();
+		Random random = new Random(slots);
+		int count = 0;
+		boolean passed = true;
+		for (int i = 0; passed && i < 200000; i++) {
+			int key = random.nextInt(10000);
+			int value = random.nextInt(4);
+			Set<Integer> values = pairs.get(key);
+			if (values == null) {
+				values = new HashSet<Integer>();
+				pairs.put(key, values);
+			}
+			if (random.nextBoolean()) {
+				table.put(key, value);
+				if (values.add(value))
+					count++;
+			} else {
+				boolean removed = values.remove(value);
+				if (removed)
+					count--;
+				passed = table.remove(key, value) == removed;
+			}
+		}
+
+		passed = passed && table.size() == count && table.mapSize() * slots <= 16 * 10000;
+		for (Map.Entry<Integer, Set<Integer>> entry : pairs.entrySet()) {
+			if (!passed)
+				break;
+			Integer value = table.get(entry.getKey());
+			passed = entry.getValue().isEmpty() ? value == null
+					: entry.getValue().contains(value);
+		}
+		check("Several values per key, put/remove, " + strategy + ", " + slots + " slots", passed);
+	}
+
+
+	/*
+	 * The same without a HashStrategy: 2 values for each of 1259
+	 * sequential keys used to double the table until it ran out of
+	 * memory. The table may only grow while it isn't sparse.
+	 */
+
+	private static void severalValuesPerKeyOriginal(int values) {
+		CuckooHash<Integer, Integer> table = new CuckooHash<Integer, Integer>(10);
+		int n = 0;
+		for (int key = 0; key < 20000; key++) {
+			for (int value = 0; value < values; value++, n++)
+				table.put(key, value);
+		}
+
+		boolean passed = table.size() == n && table.mapSize() <= 16 * n + 1;
+		for (int key = 0; passed && key < 20000; key++) {
+			Integer value = table.get(key);
+			passed = value != null && value >= 0 && value < values;
+		}
+		for (int key = 0; passed && key < 20000; key++) {
+			for (int value = 0; passed && value < values; value++)
+				passed = table.remove(key, value);
+		}
+		passed = passed && table.size() == 0 && table.get(0) == null;
+		check("Several values per key, no strategy, " + values + " values", passed);
+	}
+
+
+	/*
+	 * ConcurrentCuckooHash with distinct keys that share their hashCode(),
+	 * and so their whole hash: more than 2 * SLOTS of them used to grow the
+	 * table until it ran out of memory, at the 9th put.
+	 */
+
+	private static void equalHashCodesConcurrent(int keys) {
+		ConcurrentCuckooHash<Object, Integer> table = new ConcurrentCuckooHash<Object, Integer>(4);
+		boolean passed = true;
+		try {
+			for (int i = 0; i < keys; i++) {
+				table.put(new ZeroHash(i), i);
+				table.put("key" + i, i);
+			}
+			passed = table.size() == 2 * keys && table.mapSize() <= 4 * keys;
+			for (int i = 0; passed && i < keys; i++)
+				passed = table.put(new ZeroHash(i), -i) == i;
+			for (int i = 0; passed && i < keys; i++) {
+				passed = table.get(new ZeroHash(i)) == -i && table.get("key" + i) == i;
+			}
+			passed = passed && table.get(new ZeroHash(keys)) == null;
+			for (int i = 0; passed && i < keys; i += 2)
+				passed = table.remove(new ZeroHash(i)) == -i;
+			for (int i = 0; passed && i < keys; i++) {
+				Integer value = table.get(new ZeroHash(i));
+				passed = i % 2 == 0 ? value == null : value == -i;
+			}
+
+			// Keys put back after removes must not end up twice
+			for (int i = 0; passed && i < keys; i++)
+				table.put(new ZeroHash(i), i);
+			for (int i = 0; passed && i < keys; i++)
+				passed = table.remove(new ZeroHash(i)) == i && table.get(new ZeroHash(i)) == null;
+			passed = passed && table.size() == keys;
+		} catch (RuntimeException | OutOfMemoryError e) {
+			passed = false;
+		}
+		check("Equal hash codes, ConcurrentCuckooHash, " + keys + " keys", passed);
+	}
+
+
+	/*
+	 * IntIntCuckooHash with one key added with more values than its two
+	 * buckets hold: the rest must stay out of the stash, and come back
+	 * as the key's slots are freed.
+	 */
+
+	private static void severalValuesPerKeyPrimitive(int values) {
+		IntIntCuckooHash table = new IntIntCuckooHash(4, -1, -1);
+		for (int value = 0; value < values; value++) {
+			table.put(7, value);
+			table.put(1000 + value, value);
+		}
+
+		boolean passed = table.size() == 2 * values
+				&& table.stashed <= PrimitiveCuckooHash.STASH_SIZE
+				&& table.extras >= values - 2 * PrimitiveCuckooHash.SLOTS - PrimitiveCuckooHash.STASH_SIZE;
+		for (int value = 0; passed && value < values; value++)
+			passed = table.get(1000 + value) == value;
+
+		// Every other value, then the rest, so that the freed slots take
+		// the extras back while the key still has values left
+		for (int value = 0; passed && value < values; value += 2)
+			passed = table.remove(7, value) && !table.remove(7, value);
+		for (int value = 1; passed && value < values; value += 2) {
+			int found = table.get(7);
+			passed = found >= 0 && found % 2 == 1 && table.remove(7, value);
+		}
+		passed = passed && table.get(7) == -1 && table.size() == values && table.extras == 0;
+		for (int value = 0; passed && value < values; value++)
+			passed = table.get(1000 + value) == value;
+		check("Several values per key, IntIntCuckooHash, " + values + " values", passed);
+	}
+}
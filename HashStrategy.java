@@ -0,0 +1,391 @@
+/******************************************************************
+ *
+ *   Pluggable hash functions for BloomFilter and CuckooHash.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Hash Strategies
+ *
+ * A HashStrategy turns a key into a 64-bit hash code. The 'seed' selects
+ * one of a family of independent hash functions over the same key: a
+ * BloomFilter using the PER_INDEX scheme asks for seeds 0 to k-1, and a
+ * CuckooHash asks for seeds 0 and 1 for its two bucket locations.
+ *
+ * All key types hash the same byte sequence: a CharSequence is hashed as
+ * its UTF-16LE bytes, and a long as its 8 bytes in little endian order, so
+ * for example a String and its UTF-16LE encoding always get the same hash
+ * code. Implementations should keep to this rule, as BloomFilter relies on
+ * it to give its key types the same bits.
+ *
+ * The built-in strategies are:
+ *    LCG      - the 64-bit linear congruential hash of BloomFilter.hashCode,
+ *               one byte per step with a table lookup. Seeds select one of
+ *               its 8 tables, so only 8 seeds are distinct. This is the
+ *               default, and is what existing filters were built with.
+ *    XXHASH64 - xxHash64 (Yann Collet). Consumes 8 bytes per step in four
+ *               independent lanes, and is the fastest on long keys.
+ *    MURMUR3  - the lower 64 bits of MurmurHash3 x64 128 (Austin Appleby).
+ *               Consumes 16 bytes per step in two lanes.
+ *
+ * Byte arrays are read 8 bytes at a time through a little endian VarHandle
+ * view, which the JIT compiles down to a single load.
+ */
+
+interface HashStrategy {
+
+    long hash(CharSequence s, long seed);
+
+    long hash(byte[] b, int off, int len, long seed);
+
+    long hash(ByteBuffer buf, long seed);
+
+    long hash(long key, long seed);
+
+
+    enum Standard implements HashStrategy {
+        LCG {
+            public long hash(CharSequence s, long seed) {
+                return BloomFilter.hashCode(s, lcgRow(seed));
+            }
+            public long hash(byte[] b, int off, int len, long seed) {
+                return BloomFilter.hashCode(b, off, len, lcgRow(seed));
+            }
+            public long hash(ByteBuffer buf, long seed) {
+                return BloomFilter.hashCode(buf, lcgRow(seed));
+            }
+            public long hash(long key, long seed) {
+                return BloomFilter.hashCode(key, lcgRow(seed));
+            }
+        },
+
+        XXHASH64 {
+            public long hash(CharSequence s, long seed) {
+                return XxHash64.hash(s, seed);
+            }
+            public long hash(byte[] b, int off, int len, long seed) {
+                return XxHash64.hash(b, off, len, seed);
+            }
+            public long hash(ByteBuffer buf, long seed) {
+                return XxHash64.hash(buf, seed);
+            }
+            public long hash(long key, long seed) {
+                return XxHash64.hash(key, seed);
+            }
+        },
+
+        MURMUR3 {
+            public long hash(CharSequence s, long seed) {
+                return Murmur3.hash(s, seed);
+            }
+            public long hash(byte[] b, int off, int len, long seed) {
+                return Murmur3.hash(b, off, len, seed);
+            }
+            public long hash(ByteBuffer buf, long seed) {
+                return Murmur3.hash(buf, seed);
+            }
+            public long hash(long key, long seed) {
+                return Murmur3.hash(key, seed);
+            }
+        };
+
+        private static int lcgRow(long seed) {
+            return (int) (seed & (BloomFilter.MAX_HASHES - 1));
+        }
+    }
+
+
+    /*
+     * Little endian readers shared by the implementations below. A
+     * CharSequence is read as UTF-16LE: 4 chars make up a long.
+     */
+
+    VarHandle LONGS_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    VarHandle INTS_LE = MethodHandles.byteArrayViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private static long charsLong(CharSequence s, int i) {
+        return s.charAt(i) | (long) s.charAt(i + 1) << 16
+                | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48;
+    }
+
+    private static long charsInt(CharSequence s, int i) {
+        return (s.charAt(i) | (long) s.charAt(i + 1) << 16) & 0xFFFFFFFFL;
+    }
+
+    private static long bufLong(ByteBuffer buf, int i) {
+        long v = buf.getLong(i);
+        return buf.order() == ByteOrder.LITTLE_ENDIAN ? v : Long.reverseBytes(v);
+    }
+
+    private static long bufInt(ByteBuffer buf, int i) {
+        int v = buf.getInt(i);
+        return (buf.order() == ByteOrder.LITTLE_ENDIAN ? v : Integer.reverseBytes(v))
+                & 0xFFFFFFFFL;
+    }
+
+
+    /*
+     * xxHash64, see https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md
+     */
+
+    final class XxHash64 {
+        private static final long P1 = 0x9E3779B185EBCA87L;
+        private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long P3 = 0x165667B19E3779F9L;
+        private static final long P4 = 0x85EBCA77C2B2AE63L;
+        private static final long P5 = 0x27D4EB2F165667C5L;
+
+        private XxHash64() { }
+
+        private static long round(long acc, long input) {
+            return Long.rotateLeft(acc + input * P2, 31) * P1;
+        }
+
+        private static long merge(long acc, long v) {
+            return (acc ^ round(0, v)) * P1 + P4;
+        }
+
+        private static long converge(long v1, long v2, long v3, long v4) {
+            long h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            return merge(h, v4);
+        }
+
+        private static long tailLong(long h, long v) {
+            return Long.rotateLeft(h ^ round(0, v), 27) * P1 + P4;
+        }
+
+        private static long tailInt(long h, long v) {
+            return Long.rotateLeft(h ^ (v * P1), 23) * P2 + P3;
+        }
+
+        private static long tailByte(long h, int v) {
+            return Long.rotateLeft(h ^ ((v & 0xFF) * P5), 11) * P1;
+        }
+
+        private static long avalanche(long h) {
+            h ^= h >>> 33;
+            h *= P2;
+            h ^= h >>> 29;
+            h *= P3;
+            return h ^ (h >>> 32);
+        }
+
+        static long hash(byte[] b, int off, int len, long seed) {
+            int i = off, end = off + len;
+            long h;
+            if (len >= 32) {
+                long v1 = seed + P1 + P2, v2 = seed + P2, v3 = seed, v4 = seed - P1;
+                for (int limit = end - 32; i <= limit; i += 32) {
+                    v1 = round(v1, (long) LONGS_LE.get(b, i));
+                    v2 = round(v2, (long) LONGS_LE.get(b, i + 8));
+                    v3 = round(v3, (long) LONGS_LE.get(b, i + 16));
+                    v4 = round(v4, (long) LONGS_LE.get(b, i + 24));
+                }
+                h = converge(v1, v2, v3, v4);
+            } else {
+                h = seed + P5;
+            }
+            h += len;
+            for (; i + 8 <= end; i += 8)
+                h = tailLong(h, (long) LONGS_LE.get(b, i));
+            if (i + 4 <= end) {
+                h = tailInt(h, (int) INTS_LE.get(b, i) & 0xFFFFFFFFL);
+                i += 4;
+            }
+            for (; i < end; i++)
+                h = tailByte(h, b[i]);
+            return avalanche(h);
+        }
+
+        static long hash(CharSequence s, long seed) {
+            int i = 0, end = s.length();
+            long h;
+            if (end >= 16) {
+                long v1 = seed + P1 + P2, v2 = seed + P2, v3 = seed, v4 = seed - P1;
+                for (int limit = end - 16; i <= limit; i += 16) {
+                    v1 = round(v1, charsLong(s, i));
+                    v2 = round(v2, charsLong(s, i + 4));
+                    v3 = round(v3, charsLong(s, i + 8));
+                    v4 = round(v4, charsLong(s, i + 12));
+                }
+                h = converge(v1, v2, v3, v4);
+            } else {
+                h = seed + P5;
+            }
+            h += 2L * end;
+            for (; i + 4 <= end; i += 4)
+                h = tailLong(h, charsLong(s, i));
+            if (i + 2 <= end) {
+                h = tailInt(h, charsInt(s, i));
+                i += 2;
+            }
+            if (i < end) {
+                char ch = s.charAt(i);
+                h = tailByte(h, ch);
+                h = tailByte(h, ch >>> 8);
+            }
+            return avalanche(h);
+        }
+
+        static long hash(ByteBuffer buf, long seed) {
+            int i = buf.position(), end = buf.limit(), len = end - i;
+            long h;
+            if (len >= 32) {
+                long v1 = seed + P1 + P2, v2 = seed + P2, v3 = seed, v4 = seed - P1;
+                for (int limit = end - 32; i <= limit; i += 32) {
+                    v1 = round(v1, bufLong(buf, i));
+                    v2 = round(v2, bufLong(buf, i + 8));
+                    v3 = round(v3, bufLong(buf, i + 16));
+                    v4 = round(v4, bufLong(buf, i + 24));
+                }
+                h = converge(v1, v2, v3, v4);
+            } else {
+                h = seed + P5;
+            }
+            h += len;
+            for (; i + 8 <= end; i += 8)
+                h = tailLong(h, bufLong(buf, i));
+            if (i + 4 <= end) {
+                h = tailInt(h, bufInt(buf, i));
+                i += 4;
+            }
+            for (; i < end; i++)
+                h = tailByte(h, buf.get(i));
+            return avalanche(h);
+        }
+
+        static long hash(long key, long seed) {
+            return avalanche(tailLong(seed + P5 + 8, key));
+        }
+    }
+
+
+    /*
+     * MurmurHash3 x64 128, returning the first 64 bits of the result, see
+     * https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp
+     */
+
+    final class Murmur3 {
+        private static final long C1 = 0x87C37B91114253D5L;
+        private static final long C2 = 0x4CF5AD432745937FL;
+
+        private Murmur3() { }
+
+        private static long mixK1(long k1) {
+            return Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        private static long mixK2(long k2) {
+            return Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xFF51AFD7ED558CCDL;
+            k ^= k >>> 33;
+            k *= 0xC4CEB9FE1A85EC53L;
+            return k ^ (k >>> 33);
+        }
+
+        private static long finish(long h1, long h2, long len) {
+            h1 ^= len;
+            h2 ^= len;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            return h1 + h2;
+        }
+
+        static long hash(byte[] b, int off, int len, long seed) {
+            long h1 = seed, h2 = seed;
+            int i = off, end = off + len;
+            for (int limit = end - 16; i <= limit; i += 16) {
+                h1 ^= mixK1((long) LONGS_LE.get(b, i));
+                h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52DCE729;
+                h2 ^= mixK2((long) LONGS_LE.get(b, i + 8));
+                h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495AB5;
+            }
+            long k1 = 0, k2 = 0;
+            for (int j = end - i - 1; j >= 0; j--) {
+                long v = b[i + j] & 0xFFL;
+                if (j >= 8)
+                    k2 |= v << ((j - 8) << 3);
+                else
+                    k1 |= v << (j << 3);
+            }
+            if (end - i > 8)
+                h2 ^= mixK2(k2);
+            if (end - i > 0)
+                h1 ^= mixK1(k1);
+            return finish(h1, h2, len);
+        }
+
+        static long hash(CharSequence s, long seed) {
+            long h1 = seed, h2 = seed;
+            int i = 0, end = s.length();
+            for (int limit = end - 8; i <= limit; i += 8) {
+                h1 ^= mixK1(charsLong(s, i));
+                h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52DCE729;
+                h2 ^= mixK2(charsLong(s, i + 4));
+                h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495AB5;
+            }
+            long k1 = 0, k2 = 0;
+            for (int j = end - i - 1; j >= 0; j--) {
+                long v = s.charAt(i + j);
+                if (j >= 4)
+                    k2 |= v << ((j - 4) << 4);
+                else
+                    k1 |= v << (j << 4);
+            }
+            if (end - i > 4)
+                h2 ^= mixK2(k2);
+            if (end - i > 0)
+                h1 ^= mixK1(k1);
+            return finish(h1, h2, 2L * end);
+        }
+
+        static long hash(ByteBuffer buf, long seed) {
+            long h1 = seed, h2 = seed;
+            int i = buf.position(), end = buf.limit();
+            for (int limit = end - 16; i <= limit; i += 16) {
+                h1 ^= mixK1(bufLong(buf, i));
+                h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52DCE729;
+                h2 ^= mixK2(bufLong(buf, i + 8));
+                h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495AB5;
+            }
+            long k1 = 0, k2 = 0;
+            for (int j = end - i - 1; j >= 0; j--) {
+                long v = buf.get(i + j) & 0xFFL;
+                if (j >= 8)
+                    k2 |= v << ((j - 8) << 3);
+                else
+                    k1 |= v << (j << 3);
+            }
+            if (end - i > 8)
+                h2 ^= mixK2(k2);
+            if (end - i > 0)
+                h1 ^= mixK1(k1);
+            return finish(h1, h2, end - buf.position());
+        }
+
+        static long hash(long key, long seed) {
+            return finish(seed ^ mixK1(key), seed, 8);
+        }
+    }
+}
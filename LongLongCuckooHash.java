@@ -0,0 +1,243 @@
+/******************************************************************
+ *
+ *   Cuckoo hashmap from long keys to long values, without boxing.
+ *
+ *   Note, additional comments provided throughout this source code
+ *   is for educational purposes
+ *
+ ********************************************************************/
+
+import java.util.Arrays;
+
+
+/**
+ * Primitive Cuckoo Hashing, long to long
+ *
+ * CuckooHash<Long, Long> boxes every key and value it is passed,
+ * and holds references to the boxes. This class holds the keys and values
+ * in two long[] arrays instead, so put(), get() and remove() allocate
+ * nothing at all; only growing the table does.
+ *
+ * It behaves like CuckooHash: a <key,value> pair already in the table is
+ * not added again, a key may be added with several different values,
+ * get() returns one of them, and remove() takes the pair to remove. The
+ * table works like the bucketized mode of CuckooHash with a HashStrategy:
+ *    1) buckets of SLOTS slots, and two candidate buckets per key;
+ *    2) at most KICK_FACTOR * log2(slots) kicks per insert;
+ *    3) up to STASH_SIZE elements that couldn't be placed are kept in a
+ *       stash, and only then does the table grow, to 2*capacity + 1
+ *       buckets, by rehashing every element into a new table.
+ *
+ * An empty slot holds the "empty key", a key value that can't be added
+ * to the table (Long.MIN_VALUE unless another is passed to the
+ * constructor). get() returns the "no value" (0 unless another is
+ * passed) for a key that isn't in the table.
+ *
+ * Numeric IDs are often sequential, or multiples of some stride, and
+ * would crowd into a few buckets if used directly. Keys are therefore
+ * scrambled with the 64-bit finalizer of MurmurHash3, offset by a seed
+ * picked at random for each table; the upper and lower 32 bits of the
+ * result pick the two buckets.
+ *
+ * The hashing, kicks, stash and rehashing are those of every primitive
+ * map, and live in PrimitiveCuckooHash; this class only holds the
+ * arrays.
+ */
+
+public class LongLongCuckooHash extends PrimitiveCuckooHash {
+
+	private final long noValue;					// get() result if not found
+	private long[] keys;						// Hashmap table, keys
+	private long[] values;						// ... and their values
+	private long[] stashKeys = new long[STASH_SIZE];	// Elements that can't be placed
+	private long[] stashValues = new long[STASH_SIZE];
+	private long[] extraKeys = new long[0];		// Values beyond a key's buckets
+	private long[] extraValues = new long[0];
+	private long curKey;						// the current element
+	private long curValue;
+	private long[] savedKeys, savedStashKeys, savedExtraKeys;	// being rehashed
+	private long[] savedValues, savedStashValues, savedExtraValues;
+
+
+	/**
+	 * Method LongLongCuckooHash
+	 *
+	 * Constructors take the initial capacity in buckets, of SLOTS slots
+	 * each, and optionally the empty key and the no value.
+	 *
+	 * @param size initial capacity, in buckets
+	 */
+
+	public LongLongCuckooHash(int size) {
+		this(size, Long.MIN_VALUE, 0);
+	}
+
+	public LongLongCuckooHash(int size, long emptyKey, long noValue) {
+		super(size, emptyKey);
+		this.noValue = noValue;
+		allocate(size * SLOTS);
+	}
+
+
+	/*
+	 * Typed storage, see PrimitiveCuckooHash.
+	 */
+
+	void allocate(int length) {
+		keys = new long[length];
+		values = new long[length];
+		if (emptyKey != 0)
+			Arrays.fill(keys, emptyKey);
+	}
+
+	void clearSlots() {
+		Arrays.fill(keys, emptyKey);
+	}
+
+	long key(int pos) { return keys[pos]; }
+	long stashKey(int i) { return stashKeys[i]; }
+	long currentKey() { return curKey; }
+	boolean hasCurrentValue(int pos) { return values[pos] == curValue; }
+	boolean stashHasCurrentValue(int i) { return stashValues[i] == curValue; }
+
+	void store(int pos) {
+		keys[pos] = curKey;
+		values[pos] = curValue;
+	}
+
+	void swap(int pos) {
+		long key = keys[pos];
+		long value = values[pos];
+		store(pos);
+		curKey = key;
+		curValue = value;
+	}
+
+	void stashCurrent(int i) {
+		if (i == stashKeys.length) {
+			stashKeys = Arrays.copyOf(stashKeys, 2 * i);
+			stashValues = Arrays.copyOf(stashValues, 2 * i);
+		}
+		stashKeys[i] = curKey;
+		stashValues[i] = curValue;
+	}
+
+	void emptySlot(int pos) {
+		keys[pos] = emptyKey;
+	}
+
+	void moveStashed(int from, int to) {
+		stashKeys[to] = stashKeys[from];
+		stashValues[to] = stashValues[from];
+	}
+
+	long extraKey(int i) { return extraKeys[i]; }
+	boolean extraHasCurrentValue(int i) { return extraValues[i] == curValue; }
+
+	void addExtra(int i) {
+		if (i == extraKeys.length) {
+			extraKeys = Arrays.copyOf(extraKeys, Math.max(SLOTS, 2 * i));
+			extraValues = Arrays.copyOf(extraValues, Math.max(SLOTS, 2 * i));
+		}
+		extraKeys[i] = curKey;
+		extraValues[i] = curValue;
+	}
+
+	void loadExtra(int i) {
+		curKey = extraKeys[i];
+		curValue = extraValues[i];
+	}
+
+	void moveExtra(int from, int to) {
+		extraKeys[to] = extraKeys[from];
+		extraValues[to] = extraValues[from];
+	}
+
+	void saveTable() {
+		savedKeys = keys;
+		savedValues = values;
+		savedStashKeys = Arrays.copyOf(stashKeys, stashed);
+		savedStashValues = Arrays.copyOf(stashValues, stashed);
+		savedExtraKeys = Arrays.copyOf(extraKeys, extras);
+		savedExtraValues = Arrays.copyOf(extraValues, extras);
+	}
+
+	int savedLength() { return savedKeys.length; }
+
+	boolean loadSaved(int pos) {
+		if (savedKeys[pos] == emptyKey)
+			return false;
+		curKey = savedKeys[pos];
+		curValue = savedValues[pos];
+		return true;
+	}
+
+	void loadSavedStashed(int i) {
+		curKey = savedStashKeys[i];
+		curValue = savedStashValues[i];
+	}
+
+	void loadSavedExtra(int i) {
+		curKey = savedExtraKeys[i];
+		curValue = savedExtraValues[i];
+	}
+
+	void dropSaved() {
+		savedKeys = savedStashKeys = savedExtraKeys = null;
+		savedValues = savedStashValues = savedExtraValues = null;
+	}
+
+
+	/**
+	 * Method put
+	 *
+	 * Adds the <key,value> pair, unless it is already in the table.
+	 *
+	 * @param key the key of the element to add
+	 * @param value the value of the element to add
+	 */
+
+	public void put(long key, long value) {
+		curKey = key;
+		curValue = value;
+		putCurrent();
+	}
+
+
+	/**
+	 * Method get
+	 *
+	 * @param key Key to search for
+	 * @return the found value or the no value if it doesn't exist
+	 */
+
+	public long get(long key) {
+		int pos = findSlot(key);
+		if (pos >= 0)
+			return values[pos];
+		pos = findStashed(key);
+		return pos >= 0 ? stashValues[pos] : noValue;
+	}
+
+	public boolean containsKey(long key) {
+		return findSlot(key) >= 0 || findStashed(key) >= 0;
+	}
+
+
+	/**
+	 * Method remove
+	 *
+	 * Removes this key value pair from the table.
+	 *
+	 * @param key the key to remove
+	 * @param value the value to remove
+	 * @return successful removal
+	 */
+
+	public boolean remove(long key, long value) {
+		curKey = key;
+		curValue = value;
+		return removeCurrent();
+	}
+
+}
@@ -0,0 +1,260 @@
+/******************************************************************
+ *
+ *   Cuckoo hashmap from long keys to object values, without boxing
+ *   the keys.
+ *
+ *   Note, additional comments provided throughout this source code
+ *   is for educational purposes
+ *
+ ********************************************************************/
+
+import java.util.Arrays;
+
+
+/**
+ * Primitive Cuckoo Hashing, long to Object
+ *
+ * CuckooHash<Long, V> boxes every key it is passed, and holds references
+ * to the boxes. This class holds the keys in a long[] array instead, and
+ * the values in a parallel array, so put(), get() and remove() allocate
+ * nothing at all; only growing the table does.
+ *
+ * It behaves like CuckooHash: a <key,value> pair already in the table is
+ * not added again, a key may be added with several different values,
+ * get() returns one of them, and remove() takes the pair to remove. The
+ * table works like the bucketized mode of CuckooHash with a HashStrategy:
+ *    1) buckets of SLOTS slots, and two candidate buckets per key;
+ *    2) at most KICK_FACTOR * log2(slots) kicks per insert;
+ *    3) up to STASH_SIZE elements that couldn't be placed are kept in a
+ *       stash, and only then does the table grow, to 2*capacity + 1
+ *       buckets, by rehashing every element into a new table.
+ *
+ * An empty slot holds the "empty key", a key value that can't be added
+ * to the table (Long.MIN_VALUE unless another is passed to the
+ * constructor). Values may not be null, so that get() can return null
+ * for a key that isn't in the table.
+ *
+ * Numeric IDs are often sequential, or multiples of some stride, and
+ * would crowd into a few buckets if used directly. Keys are therefore
+ * scrambled with the 64-bit finalizer of MurmurHash3, offset by a seed
+ * picked at random for each table; the upper and lower 32 bits of the
+ * result pick the two buckets.
+ *
+ * The hashing, kicks, stash and rehashing are those of every primitive
+ * map, and live in PrimitiveCuckooHash; this class only holds the
+ * arrays.
+ */
+
+@SuppressWarnings("unchecked")
+public class LongObjCuckooHash<V> extends PrimitiveCuckooHash {
+
+	private long[] keys;						// Hashmap table, keys
+	private Object[] values;					// ... and their values
+	private long[] stashKeys = new long[STASH_SIZE];	// Elements that can't be placed
+	private Object[] stashValues = new Object[STASH_SIZE];
+	private long[] extraKeys = new long[0];		// Values beyond a key's buckets
+	private Object[] extraValues = new Object[0];
+	private long curKey;						// the current element
+	private Object curValue;
+	private long[] savedKeys, savedStashKeys, savedExtraKeys;	// being rehashed
+	private Object[] savedValues, savedStashValues, savedExtraValues;
+
+
+	/**
+	 * Method LongObjCuckooHash
+	 *
+	 * Constructors take the initial capacity in buckets, of SLOTS slots
+	 * each, and optionally the empty key.
+	 *
+	 * @param size initial capacity, in buckets
+	 */
+
+	public LongObjCuckooHash(int size) {
+		this(size, Long.MIN_VALUE);
+	}
+
+	public LongObjCuckooHash(int size, long emptyKey) {
+		super(size, emptyKey);
+		allocate(size * SLOTS);
+	}
+
+
+	/*
+	 * Typed storage, see PrimitiveCuckooHash.
+	 */
+
+	void allocate(int length) {
+		keys = new long[length];
+		values = new Object[length];
+		if (emptyKey != 0)
+			Arrays.fill(keys, emptyKey);
+	}
+
+	void clearSlots() {
+		Arrays.fill(keys, emptyKey);
+		Arrays.fill(values, null);
+		Arrays.fill(stashValues, null);
+		Arrays.fill(extraValues, null);
+	}
+
+	long key(int pos) { return keys[pos]; }
+	long stashKey(int i) { return stashKeys[i]; }
+	long currentKey() { return curKey; }
+	boolean hasCurrentValue(int pos) { return values[pos].equals(curValue); }
+	boolean stashHasCurrentValue(int i) { return stashValues[i].equals(curValue); }
+
+	void store(int pos) {
+		keys[pos] = curKey;
+		values[pos] = curValue;
+	}
+
+	void swap(int pos) {
+		long key = keys[pos];
+		Object value = values[pos];
+		store(pos);
+		curKey = key;
+		curValue = value;
+	}
+
+	void stashCurrent(int i) {
+		if (i == stashKeys.length) {
+			stashKeys = Arrays.copyOf(stashKeys, 2 * i);
+			stashValues = Arrays.copyOf(stashValues, 2 * i);
+		}
+		stashKeys[i] = curKey;
+		stashValues[i] = curValue;
+	}
+
+	void emptySlot(int pos) {
+		keys[pos] = emptyKey;
+		values[pos] = null;
+	}
+
+	void moveStashed(int from, int to) {
+		stashKeys[to] = stashKeys[from];
+		stashValues[to] = stashValues[from];
+		stashValues[from] = null;
+	}
+
+	long extraKey(int i) { return extraKeys[i]; }
+	boolean extraHasCurrentValue(int i) { return extraValues[i].equals(curValue); }
+
+	void addExtra(int i) {
+		if (i == extraKeys.length) {
+			extraKeys = Arrays.copyOf(extraKeys, Math.max(SLOTS, 2 * i));
+			extraValues = Arrays.copyOf(extraValues, Math.max(SLOTS, 2 * i));
+		}
+		extraKeys[i] = curKey;
+		extraValues[i] = curValue;
+	}
+
+	void loadExtra(int i) {
+		curKey = extraKeys[i];
+		curValue = extraValues[i];
+	}
+
+	void moveExtra(int from, int to) {
+		extraKeys[to] = extraKeys[from];
+		extraValues[to] = extraValues[from];
+		extraValues[from] = null;
+	}
+
+	void saveTable() {
+		savedKeys = keys;
+		savedValues = values;
+		savedStashKeys = Arrays.copyOf(stashKeys, stashed);
+		savedStashValues = Arrays.copyOf(stashValues, stashed);
+		savedExtraKeys = Arrays.copyOf(extraKeys, extras);
+		savedExtraValues = Arrays.copyOf(extraValues, extras);
+		Arrays.fill(stashValues, null);
+		Arrays.fill(extraValues, null);
+	}
+
+	int savedLength() { return savedKeys.length; }
+
+	boolean loadSaved(int pos) {
+		if (savedKeys[pos] == emptyKey)
+			return false;
+		curKey = savedKeys[pos];
+		curValue = savedValues[pos];
+		return true;
+	}
+
+	void loadSavedStashed(int i) {
+		curKey = savedStashKeys[i];
+		curValue = savedStashValues[i];
+	}
+
+	void loadSavedExtra(int i) {
+		curKey = savedExtraKeys[i];
+		curValue = savedExtraValues[i];
+	}
+
+	void dropSaved() {
+		savedKeys = savedStashKeys = savedExtraKeys = null;
+		savedValues = savedStashValues = savedExtraValues = null;
+		curValue = null;
+	}
+
+
+	/**
+	 * Method put
+	 *
+	 * Adds the <key,value> pair, unless it is already in the table.
+	 *
+	 * @param key the key of the element to add
+	 * @param value the value of the element to add
+	 */
+
+	public void put(long key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("Null value");
+		curKey = key;
+		curValue = value;
+		try {
+			putCurrent();
+		} finally {
+			curValue = null;			// don't hold on to the value
+		}
+	}
+
+
+	/**
+	 * Method get
+	 *
+	 * @param key Key to search for
+	 * @return the found value or null if it doesn't exist
+	 */
+
+	public V get(long key) {
+		int pos = findSlot(key);
+		if (pos >= 0)
+			return (V) values[pos];
+		pos = findStashed(key);
+		return pos >= 0 ? (V) stashValues[pos] : null;
+	}
+
+	public boolean containsKey(long key) {
+		return findSlot(key) >= 0 || findStashed(key) >= 0;
+	}
+
+
+	/**
+	 * Method remove
+	 *
+	 * Removes this key value pair from the table.
+	 *
+	 * @param key the key to remove
+	 * @param value the value to remove
+	 * @return successful removal
+	 */
+
+	public boolean remove(long key, V value) {
+		curKey = key;
+		curValue = value;
+		boolean removed = value != null && removeCurrent();
+		curValue = null;
+		return removed;
+	}
+
+}
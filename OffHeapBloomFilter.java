@@ -0,0 +1,197 @@
+/******************************************************************
+ *
+ *   Off-heap Bloom filter, for bit maps larger than BloomFilter's
+ *   2^31 bits.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Objects;
+
+
+/**
+ * Off-heap Bloom Filters
+ *
+ * BloomFilter keeps its bit map in a java.util.BitSet, so it is limited to
+ * 2^31 bits (256 MB), the bit indexes are ints, and the whole map lives on
+ * the Java heap, where the garbage collector has to account for it.
+ *
+ * This class keeps the bit map outside the heap, in direct ByteBuffers,
+ * and uses 64-bit bit indexes taken from the full 64-bit hash codes, so a
+ * filter can be tens of gigabytes with no cost to the garbage collector.
+ * A single ByteBuffer is indexed by int and so holds at most 2 GB; the
+ * map is therefore split into segments of 2^30 bytes (2^33 bits) each, and
+ * a bit index is split into
+ *
+ *      segment = bitNo >>> 33,  word = (bitNo >>> 6) & (2^27 - 1)
+ *
+ * Direct buffers are allocated zeroed, and their memory is released when
+ * the filter is garbage collected. The JVM limits the total size of direct
+ * buffers with -XX:MaxDirectMemorySize, which defaults to the maximum heap
+ * size; large filters need that raised.
+ *
+ * The filter uses the same hashing and hash schemes as BloomFilter with
+ * the STANDARD layout; for sizes of up to 2^31 bits both set the same bits.
+ */
+
+class OffHeapBloomFilter {
+    static final int MAX_LOG2_BITS = 40;                    // 128 GB
+    private static final int LOG2_SEGMENT_BITS = 33;        // 1 GB per buffer
+    private static final int SEGMENT_WORD_MASK = (1 << (LOG2_SEGMENT_BITS - 6)) - 1;
+
+    private final LongBuffer[] segments;            // The hash bit map
+    private final int noHashes;                     // number of hashes
+    private final long hashMask;                    // hash mask
+    private final BloomFilter.HashScheme scheme;    // how hash codes are made
+    private long bitsSet;                           // number of bits set
+
+
+    /*
+     * Constructors take the base 2 logarithm of the number of bits, here
+     * up to 40, and the number of hash functions, optionally with the
+     * HashScheme to use.
+     */
+
+    public OffHeapBloomFilter(int log2noBits, int noHashes) {
+        this(log2noBits, noHashes, BloomFilter.HashScheme.PER_INDEX);
+    }
+
+    public OffHeapBloomFilter(int log2noBits, int noHashes,
+                              BloomFilter.HashScheme scheme) {
+        if (log2noBits < 6 || log2noBits > MAX_LOG2_BITS)
+            throw new IllegalArgumentException("Invalid number of bits");
+        if (noHashes < 1 || noHashes > BloomFilter.MAX_HASHES)
+            throw new IllegalArgumentException("Invalid number of hashes");
+
+        int log2SegmentBits = Math.min(log2noBits, LOG2_SEGMENT_BITS);
+        int noSegments = 1 << (log2noBits - log2SegmentBits);
+        this.segments = new LongBuffer[noSegments];
+        for (int i = 0; i < noSegments; i++) {
+            segments[i] = ByteBuffer.allocateDirect(1 << (log2SegmentBits - 3))
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+        this.noHashes = noHashes;
+        this.hashMask = (1L << log2noBits) - 1;
+        this.scheme = scheme;
+    }
+
+    public BloomFilter.HashScheme scheme() { return scheme; }
+    public long noBits() { return hashMask + 1; }
+    public long bitCount() { return bitsSet; }
+
+
+    /*
+     * Bit map access
+     */
+
+    private boolean getBit(long bitNo) {
+        LongBuffer seg = segments[(int) (bitNo >>> LOG2_SEGMENT_BITS)];
+        return (seg.get((int) (bitNo >>> 6) & SEGMENT_WORD_MASK) & (1L << bitNo)) != 0;
+    }
+
+    private void setBit(long bitNo) {
+        LongBuffer seg = segments[(int) (bitNo >>> LOG2_SEGMENT_BITS)];
+        int wordNo = (int) (bitNo >>> 6) & SEGMENT_WORD_MASK;
+        long word = seg.get(wordNo);
+        long mask = 1L << bitNo;
+        if ((word & mask) == 0) {
+            seg.put(wordNo, word | mask);
+            bitsSet++;
+        }
+    }
+
+    private long step(long hc0) {
+        return scheme == BloomFilter.HashScheme.DOUBLE_HASHING
+                ? BloomFilter.hashStep(hc0) : 0;
+    }
+
+
+    /*
+     * Method add
+     *
+     * Sets the bits for each of the 'k' hash codes of the key; the
+     * overloads that follow take the other key types BloomFilter accepts.
+     *
+     * @param String - the value to add the to set
+     */
+
+    public void add(CharSequence s) {
+        long hc = BloomFilter.hashCode(s, 0);
+        long step = step(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(s, n);
+            setBit(hc & hashMask);
+        }
+    }
+
+    public void add(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        long hc = BloomFilter.hashCode(b, off, len, 0);
+        long step = step(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(b, off, len, n);
+            setBit(hc & hashMask);
+        }
+    }
+
+    public void add(long key) {
+        long hc = BloomFilter.hashCode(key, 0);
+        long step = step(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(key, n);
+            setBit(hc & hashMask);
+        }
+    }
+
+
+    /*
+     * Method contains
+     *
+     * @param boolean - false if not in set, else true for most probably in set
+     */
+
+    public boolean contains(CharSequence s) {
+        long hc = BloomFilter.hashCode(s, 0);
+        long step = step(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(s, n);
+            if (!getBit(hc & hashMask))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean contains(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        long hc = BloomFilter.hashCode(b, off, len, 0);
+        long step = step(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(b, off, len, n);
+            if (!getBit(hc & hashMask))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        long hc = BloomFilter.hashCode(key, 0);
+        long step = step(hc);
+        for (int n = 0; n < noHashes; n++) {
+            if (n > 0)
+                hc = step != 0 ? hc + step : BloomFilter.hashCode(key, n);
+            if (!getBit(hc & hashMask))
+                return false;
+        }
+        return true;
+    }
+}
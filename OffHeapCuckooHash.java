@@ -0,0 +1,422 @@
+/******************************************************************
+ *
+ *   Off-heap cuckoo hashmap from byte string keys to byte string
+ *   values, held outside the Java heap.
+ *
+ *   Note, additional comments provided throughout this source code
+ *   is for educational purposes
+ *
+ ********************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Off-heap Cuckoo Hashing
+ *
+ * Tens of millions of small records in a CuckooHash are tens of millions
+ * of key and value objects, all of which the garbage collector has to
+ * trace again and again. This class keeps both the table and the records
+ * in direct ByteBuffers, outside the heap, so the heap only holds a
+ * handful of buffer objects whatever the number of records.
+ *
+ * The records are appended to an "arena" of chunks, direct ByteBuffers
+ * of 'chunkSize' bytes each. A record is laid out as
+ *
+ *      [hash (8 bytes)][key length (4)][value length (4)][key][value]
+ *
+ * and starts on an 8-byte boundary. Its position in the arena, chunk
+ * index and offset within the chunk, fits in 48 bits.
+ *
+ * The table has buckets of SLOTS slots, as in the bucketized mode of
+ * CuckooHash, and is a direct buffer of longs. A slot holds the position
+ * of a record in its lower 48 bits and a 16-bit "tag", other bits of the
+ * key's hash than those that pick its buckets, in its upper 16 bits; 0 is
+ * an empty slot. A lookup only reads the record of a slot whose tag
+ * matches, so looking up a key reads the arena about once, rather than
+ * once per slot of its two buckets. Kicking an element out, or growing
+ * the table, reads its hash from its record rather than hashing its key
+ * again.
+ *
+ * get() returns a read-only view of the value in the arena, not a copy.
+ * Unlike CuckooHash, a key maps to a single value: put() replaces the
+ * value of a key already in the table, in place if the new value has the
+ * same length, or else by appending a new record. The space of replaced
+ * and removed records is reclaimed by compacting the arena, which
+ * happens when a new chunk would be needed while at least half of the
+ * arena is garbage.
+ *
+ * A view returned by get() stays readable afterwards, but reflects a
+ * later put() of the same length to its key, and no longer tracks the
+ * key once the value is replaced, the key is removed, or the arena is
+ * compacted. Copy the value out if it must be kept.
+ *
+ * Keys and values are byte strings, passed as byte[] or as the bytes
+ * between position and limit of a ByteBuffer, which are left untouched.
+ * Records of any length up to the chunk size are supported, so fixed
+ * size records are just the case of all lengths being the same.
+ */
+
+public class OffHeapCuckooHash {
+
+	private static final int SLOTS = 4;				// slots per bucket
+	private static final int KICK_FACTOR = 5;		// kicks per bit of table size
+	private static final int HEADER = 16;			// record header, in bytes
+	private static final long POSITION_MASK = (1L << 48) - 1;
+
+	private final HashStrategy strategy;
+	private final long seed;
+	private final int chunkShift;					// log2 of the chunk size
+	private int capacity;							// in buckets
+	private ByteBuffer table;						// slots, as longs
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final List<ByteBuffer> views = new ArrayList<ByteBuffer>();
+	private int top;								// next free byte of last chunk
+	private long garbage;							// bytes of dead records
+	private int count;								// elements in the table
+	private long leftSlot;							// left over by place()
+
+
+	/**
+	 * Method OffHeapCuckooHash
+	 *
+	 * Constructors take the initial capacity in buckets, of SLOTS slots
+	 * each, and optionally the chunk size, a power of two between 4 KB
+	 * and 1 GB (64 MB by default), and the HashStrategy (xxHash64 by
+	 * default).
+	 *
+	 * @param size initial capacity, in buckets
+	 */
+
+	public OffHeapCuckooHash(int size) {
+		this(size, 1 << 26, HashStrategy.Standard.XXHASH64);
+	}
+
+	public OffHeapCuckooHash(int size, int chunkSize, HashStrategy strategy) {
+		if (size < 1 || (long) size * SLOTS * 8 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid capacity");
+		if (Integer.bitCount(chunkSize) != 1 || chunkSize < (1 << 12) || chunkSize > (1 << 30))
+			throw new IllegalArgumentException("Invalid chunk size");
+		if (strategy == null)
+			throw new IllegalArgumentException("No hash strategy");
+		this.strategy = strategy;
+		this.seed = ThreadLocalRandom.current().nextLong();
+		this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+		capacity = size;
+		table = allocateTable(capacity);
+		clear();
+	}
+
+	private static ByteBuffer allocateTable(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * SLOTS * 8).order(ByteOrder.nativeOrder());
+	}
+
+	public int size() { return count; }
+	public int mapSize() { return capacity; }    // used in external testing only
+
+	// Off-heap bytes held by the table and the arena
+	public long offHeapBytes() {
+		return (long) table.capacity() + ((long) chunks.size() << chunkShift);
+	}
+
+	public void clear() {
+		for (int i = 0; i < capacity * SLOTS; ++i)
+			setSlot(i, 0);
+		chunks.clear();
+		views.clear();
+		addChunk();
+		top = 8;					// position 0 stands for an empty slot
+		garbage = 0;
+		count = 0;
+	}
+
+
+	/*
+	 * Slots and records.
+	 */
+
+	private long slot(int i) { return table.getLong(i << 3); }
+	private void setSlot(int i, long slot) { table.putLong(i << 3, slot); }
+
+	private static long position(long slot) { return slot & POSITION_MASK; }
+	private static int tag(long hash) { return (int) hash & 0xFFFF; }
+	private static long slotOf(long position, long hash) {
+		return ((long) tag(hash) << 48) | position;
+	}
+
+	private ByteBuffer chunk(long position) { return chunks.get((int) (position >>> chunkShift)); }
+	private int offset(long position) { return (int) position & ((1 << chunkShift) - 1); }
+
+	private long hashAt(long position) { return chunk(position).getLong(offset(position)); }
+	private int keyLength(long position) { return chunk(position).getInt(offset(position) + 8); }
+	private int valueLength(long position) { return chunk(position).getInt(offset(position) + 12); }
+
+	private static int recordSize(int keyLength, int valueLength) {
+		return (HEADER + keyLength + valueLength + 7) & ~7;
+	}
+
+	private void addChunk() {
+		ByteBuffer chunk = ByteBuffer.allocateDirect(1 << chunkShift).order(ByteOrder.nativeOrder());
+		chunks.add(chunk);
+		views.add(chunk.asReadOnlyBuffer());
+		top = 0;
+	}
+
+	/*
+	 * Appends a record, compacting the arena or adding a chunk first if
+	 * the last chunk is full, and returns its position.
+	 */
+	private long append(long hash, ByteBuffer key, ByteBuffer value) {
+		int keyLength = key.remaining(), valueLength = value.remaining();
+		int size = recordSize(keyLength, valueLength);
+		if (size > (1 << chunkShift))
+			throw new IllegalArgumentException("Record larger than a chunk");
+		if (top + size > (1 << chunkShift)) {
+			long used = ((long) (chunks.size() - 1) << chunkShift) + top;
+			if (2 * garbage >= used)
+				compact();
+			if (top + size > (1 << chunkShift))
+				addChunk();
+		}
+		ByteBuffer chunk = chunks.get(chunks.size() - 1);
+		chunk.putLong(top, hash);
+		chunk.putInt(top + 8, keyLength);
+		chunk.putInt(top + 12, valueLength);
+		chunk.put(top + HEADER, key, key.position(), keyLength);
+		chunk.put(top + HEADER + keyLength, value, value.position(), valueLength);
+		long position = ((long) (chunks.size() - 1) << chunkShift) | top;
+		top += size;
+		return position;
+	}
+
+	// True if the record at 'position' has the key
+	private boolean hasKey(long position, long hash, ByteBuffer key) {
+		ByteBuffer chunk = chunk(position);
+		int off = offset(position);
+		int len = key.remaining();
+		if (chunk.getLong(off) != hash || chunk.getInt(off + 8) != len)
+			return false;
+		return chunk.slice(off + HEADER, len).equals(key);
+	}
+
+
+	/*
+	 * Hash functions, as in ConcurrentCuckooHash: the upper and lower 32
+	 * bits of the key's hash pick the two buckets.
+	 */
+
+	private int bucket1(long h) { return (int) (((h >>> 32) * capacity) >>> 32); }
+	private int bucket2(long h) { return (int) (((h & 0xFFFFFFFFL) * capacity) >>> 32); }
+
+	// Index of the key's slot in the bucket, or -1
+	private int find(int bucket, long hash, ByteBuffer key) {
+		int tag = tag(hash);
+		for (int i = bucket * SLOTS, end = i + SLOTS; i < end; ++i) {
+			long slot = slot(i);
+			if (slot != 0 && (int) (slot >>> 48) == tag && hasKey(position(slot), hash, key))
+				return i;
+		}
+		return -1;
+	}
+
+	private int find(long hash, ByteBuffer key) {
+		int i = find(bucket1(hash), hash, key);
+		return i >= 0 ? i : find(bucket2(hash), hash, key);
+	}
+
+	private int freeSlot(int bucket) {
+		for (int i = bucket * SLOTS, end = i + SLOTS; i < end; ++i) {
+			if (slot(i) == 0)
+				return i;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Method put
+	 *
+	 * Adds the <key,value> pair, or replaces the value if the key is
+	 * already in the table.
+	 *
+	 * @param key the key of the element to add
+	 * @param value the value of the element to add
+	 */
+
+	public void put(byte[] key, byte[] value) {
+		put(ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+	}
+
+	public void put(ByteBuffer key, ByteBuffer value) {
+		long hash = strategy.hash(key, seed);
+		int i = find(hash, key);
+		if (i >= 0) {
+			long position = position(slot(i));
+			if (valueLength(position) == value.remaining()) {
+				chunk(position).put(offset(position) + HEADER + key.remaining(),
+						value, value.position(), value.remaining());
+				return;
+			}
+			// Count the old record as garbage only once append() is done,
+			// as compacting the arena there would reset the count but
+			// still copy the record, which the slot points at until then
+			long appended = append(hash, key, value);
+			garbage += recordSize(key.remaining(), valueLength(position(slot(i))));
+			setSlot(i, slotOf(appended, hash));
+			return;
+		}
+
+		long slot = slotOf(append(hash, key, value), hash);
+		count++;
+		while (!place(slot)) {
+			slot = leftSlot;
+			rehash();
+		}
+	}
+
+	/*
+	 * Places the slot in a free slot of its buckets, kicking out resident
+	 * slots as CuckooHash does. Returns false, with the slot left over in
+	 * leftSlot, if the kicks run out.
+	 */
+	private boolean place(long slot) {
+		long hash = hashAt(position(slot));
+		int b1 = bucket1(hash);
+		int bucket = b1;
+		if (freeSlot(b1) < 0 && freeSlot(bucket2(hash)) >= 0)
+			bucket = bucket2(hash);
+		int maxKicks = KICK_FACTOR * (32 - Integer.numberOfLeadingZeros(capacity * SLOTS));
+		for (int k = 0; k < maxKicks; ++k) {
+			int i = freeSlot(bucket);
+			if (i >= 0) {
+				setSlot(i, slot);
+				return true;
+			}
+			i = bucket * SLOTS + ThreadLocalRandom.current().nextInt(SLOTS);
+			long kicked = slot(i);
+			setSlot(i, slot);
+			slot = kicked;
+			hash = hashAt(position(slot));
+			b1 = bucket1(hash);
+			bucket = (bucket == b1) ? bucket2(hash) : b1;
+		}
+		leftSlot = slot;
+		return false;
+	}
+
+
+	/**
+	 * Method get
+	 *
+	 * @param key Key to search for
+	 * @return a read-only view of the value in the arena, or null if the
+	 *         key doesn't exist
+	 */
+
+	public ByteBuffer get(byte[] key) {
+		return get(ByteBuffer.wrap(key));
+	}
+
+	public ByteBuffer get(ByteBuffer key) {
+		long hash = strategy.hash(key, seed);
+		int i = find(hash, key);
+		if (i < 0)
+			return null;
+		long position = position(slot(i));
+		int off = offset(position);
+		ByteBuffer view = views.get((int) (position >>> chunkShift));
+		return view.slice(off + HEADER + key.remaining(), valueLength(position));
+	}
+
+
+	/**
+	 * Method remove
+	 *
+	 * Removes the key and its value from the table.
+	 *
+	 * @param key the key to remove
+	 * @return successful removal
+	 */
+
+	public boolean remove(byte[] key) {
+		return remove(ByteBuffer.wrap(key));
+	}
+
+	public boolean remove(ByteBuffer key) {
+		long hash = strategy.hash(key, seed);
+		int i = find(hash, key);
+		if (i < 0)
+			return false;
+		long position = position(slot(i));
+		garbage += recordSize(keyLength(position), valueLength(position));
+		setSlot(i, 0);
+		count--;
+		return true;
+	}
+
+
+	/**
+	 * Method rehash
+	 *
+	 * Regrows the table to capacity 2*old capacity + 1 and places all the
+	 * slots again, reading each key's hash from its record. Should the
+	 * kicks run out on the way, it starts over with a table twice as big
+	 * again, so it never recurses.
+	 */
+
+	private void rehash() {
+		ByteBuffer old = table;
+		int oldSlots = capacity * SLOTS;
+		retry:
+		while (true) {
+			capacity = (capacity * 2) + 1;
+			if ((long) capacity * SLOTS * 8 > Integer.MAX_VALUE)
+				throw new IllegalStateException("Cuckoo hash table would be too big");
+			table = allocateTable(capacity);
+			for (int i = 0; i < oldSlots; ++i) {
+				long slot = old.getLong(i << 3);
+				if (slot != 0 && !place(slot))
+					continue retry;
+			}
+			return;
+		}
+	}
+
+
+	/**
+	 * Method compact
+	 *
+	 * Copies the live records to a new arena, in table order, and points
+	 * the slots at the copies; the old chunks are freed by the garbage
+	 * collector once no view of them is left.
+	 */
+
+	private void compact() {
+		List<ByteBuffer> oldChunks = new ArrayList<ByteBuffer>(chunks);
+		chunks.clear();
+		views.clear();
+		addChunk();
+		top = 8;
+		garbage = 0;
+		for (int i = 0; i < capacity * SLOTS; ++i) {
+			long slot = slot(i);
+			if (slot == 0)
+				continue;
+			long position = position(slot);
+			ByteBuffer from = oldChunks.get((int) (position >>> chunkShift));
+			int off = offset(position);
+			int size = recordSize(from.getInt(off + 8), from.getInt(off + 12));
+			if (top + size > (1 << chunkShift))
+				addChunk();
+			chunks.get(chunks.size() - 1).put(top, from, off, size);
+			setSlot(i, (slot & ~POSITION_MASK)
+					| ((long) (chunks.size() - 1) << chunkShift) | top);
+			top += size;
+		}
+	}
+
+}
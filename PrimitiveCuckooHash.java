@@ -0,0 +1,354 @@
+/******************************************************************
+ *
+ *   Common code of the cuckoo hashmaps with primitive keys.
+ *
+ *   Note, additional comments provided throughout this source code
+ *   is for educational purposes
+ *
+ ********************************************************************/
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Primitive Cuckoo Hashing
+ *
+ * IntIntCuckooHash, LongLongCuckooHash and LongObjCuckooHash only differ
+ * in the types of the arrays that hold their keys and values. This class
+ * holds everything else: the hashing, the kicks, the stash and the
+ * rehashing, as described in IntIntCuckooHash. The subclasses hold the
+ * arrays, and give access to them through the abstract methods below,
+ * each of which reads or writes a single slot.
+ *
+ * The element being added, kicked out or removed is the "current
+ * element", held in typed fields of the subclass, so that it can move
+ * between the slots without being boxed; put() and remove() set it before
+ * calling into this class. Keys are passed here as longs, which an int
+ * key widens to without loss.
+ *
+ * A key added with more values than its two buckets hold fills them, and
+ * no kick can make room there. Its further values are "extras", kept
+ * apart from the stash so that they neither count towards STASH_SIZE nor
+ * lengthen the stash lookups of other keys. Kicks leave the slots of such
+ * a key alone, so that the extras are only ever looked at for a key whose
+ * buckets are full of it, and a slot of such a key that is freed takes
+ * one of its extras back.
+ */
+
+abstract class PrimitiveCuckooHash {
+
+	static final int SLOTS = 4;					// slots per bucket
+	static final int STASH_SIZE = 4;			// failed inserts kept aside
+	private static final int KICK_FACTOR = 5;	// kicks per bit of table size
+
+	final long emptyKey;						// marks an empty slot
+	private final long seed;					// hash seed
+	private int capacity;						// in buckets
+	int stashed;								// elements in the stash
+	int extras;									// values beyond a key's buckets
+	private int count;							// elements in the table
+
+	PrimitiveCuckooHash(int size, long emptyKey) {
+		if (size < 1)
+			throw new IllegalArgumentException("Invalid capacity");
+		this.emptyKey = emptyKey;
+		this.seed = ThreadLocalRandom.current().nextLong();
+		capacity = size;
+	}
+
+	public int size() { return count; }
+	public int mapSize() { return capacity; }    // used in external testing only
+
+	public void clear() {
+		clearSlots();
+		stashed = 0;
+		extras = 0;
+		count = 0;
+	}
+
+
+	/*
+	 * Typed storage, implemented by the subclasses. 'pos' is the index of
+	 * a slot of the table, 'i' that of an element of the stash or extras.
+	 */
+
+	abstract void allocate(int length);			// new empty table of 'length' slots
+	abstract void clearSlots();					// empty every slot and the stash
+	abstract long key(int pos);
+	abstract long stashKey(int i);
+	abstract long currentKey();
+	abstract boolean hasCurrentValue(int pos);		// slot holds the current value
+	abstract boolean stashHasCurrentValue(int i);	// ... and stashed element
+	abstract void store(int pos);				// current element into the slot
+	abstract void swap(int pos);				// current element with the slot's
+	abstract void stashCurrent(int i);			// current element into the stash
+	abstract void emptySlot(int pos);
+	abstract void moveStashed(int from, int to);	// and empty 'from'
+	abstract long extraKey(int i);
+	abstract boolean extraHasCurrentValue(int i);
+	abstract void addExtra(int i);				// current element into the extras
+	abstract void loadExtra(int i);				// extra as the current element
+	abstract void moveExtra(int from, int to);	// and empty 'from'
+
+	// Rehashing: the table and stash being rehashed, and loading their
+	// elements as the current element
+	abstract void saveTable();
+	abstract int savedLength();
+	abstract boolean loadSaved(int pos);		// false if the slot is empty
+	abstract void loadSavedStashed(int i);
+	abstract void loadSavedExtra(int i);
+	abstract void dropSaved();
+
+
+	/*
+	 * Hash functions. mix() is the MurmurHash3 finalizer, and each half of
+	 * its result is mapped onto [0, capacity) with a multiply and shift.
+	 */
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	private long hash(long key) { return mix(key + seed); }
+	private int bucket1(long h) { return (int) (((h >>> 32) * capacity) >>> 32); }
+	private int bucket2(long h) { return (int) (((h & 0xFFFFFFFFL) * capacity) >>> 32); }
+
+
+	/*
+	 * Method putCurrent
+	 *
+	 * Adds the current element, unless it is already in the table. An
+	 * element that is left over with the stash full is stashed all the
+	 * same, and the table then grows and takes every element anew.
+	 */
+
+	final void putCurrent() {
+		long key = currentKey();
+		if (key == emptyKey)
+			throw new IllegalArgumentException("Can't add the empty key");
+		long h = hash(key);
+		if (find(bucket1(h), key, true) >= 0 || find(bucket2(h), key, true) >= 0
+				|| findStashed(key, true) >= 0
+				|| (extras > 0 && fills(h, key) && findExtra(key, true) >= 0))
+			return;
+
+		count++;
+		if (insert(h))
+			return;
+		stashCurrent(stashed++);
+		rehash();
+	}
+
+	/*
+	 * Places the current element, or failing that stashes the element
+	 * left over from the kicks. Returns false, with the element still left
+	 * over as the current element, if the stash is full.
+	 */
+	private boolean insert(long h) {
+		// Both buckets are full of this very key (with other values), so
+		// no amount of kicking or growing makes room for it
+		if (fills(h, currentKey())) {
+			addExtra(extras++);
+			return true;
+		}
+		if (place(h))
+			return true;
+		if (stashed >= STASH_SIZE)
+			return false;
+		stashCurrent(stashed++);
+		return true;
+	}
+
+	private boolean place(long h) {
+		int b1 = bucket1(h);
+		int b2 = bucket2(h);
+		int bucket = b1;
+		if (freeSlot(b1) < 0 && freeSlot(b2) >= 0)
+			bucket = b2;
+		int maxKicks = KICK_FACTOR * (32 - Integer.numberOfLeadingZeros(capacity * SLOTS));
+		for (int i = 0; i < maxKicks; ++i) {
+			int pos = freeSlot(bucket);
+			if (pos >= 0) {
+				store(pos);
+				return true;
+			}
+
+			// Kick out a resident element, and move it on to its
+			// alternate location. A key filling both its buckets has
+			// nowhere to move to, so try the other bucket instead.
+			pos = bucket * SLOTS + ThreadLocalRandom.current().nextInt(SLOTS);
+			long resident = key(pos);
+			if (onlyKey(bucket, resident) && fills(hash(resident), resident)) {
+				bucket = (bucket == b1) ? b2 : b1;
+				continue;
+			}
+			swap(pos);
+			h = hash(currentKey());
+			b1 = bucket1(h);
+			b2 = bucket2(h);
+			bucket = (bucket == b1) ? b2 : b1;
+		}
+		return false;
+	}
+
+
+	/*
+	 * Slot lookups, returning the slot's index, or -1 if there is none.
+	 * The current element's value is only compared if 'matchValue' is set.
+	 */
+	private int find(int bucket, long key, boolean matchValue) {
+		for (int pos = bucket * SLOTS, end = pos + SLOTS; pos < end; ++pos) {
+			if (key(pos) == key && (!matchValue || hasCurrentValue(pos)))
+				return pos;
+		}
+		return -1;
+	}
+
+	private int findStashed(long key, boolean matchValue) {
+		for (int i = 0; i < stashed; ++i) {
+			if (stashKey(i) == key && (!matchValue || stashHasCurrentValue(i)))
+				return i;
+		}
+		return -1;
+	}
+
+	private int findExtra(long key, boolean matchValue) {
+		for (int i = 0; i < extras; ++i) {
+			if (extraKey(i) == key && (!matchValue || extraHasCurrentValue(i)))
+				return i;
+		}
+		return -1;
+	}
+
+	private int freeSlot(int bucket) {
+		for (int pos = bucket * SLOTS, end = pos + SLOTS; pos < end; ++pos) {
+			if (key(pos) == emptyKey)
+				return pos;
+		}
+		return -1;
+	}
+
+	// True if every slot of the bucket holds the key
+	private boolean onlyKey(int bucket, long key) {
+		for (int pos = bucket * SLOTS, end = pos + SLOTS; pos < end; ++pos) {
+			if (key(pos) != key)
+				return false;
+		}
+		return true;
+	}
+
+	// True if both buckets of the key, of hash 'h', are full of it
+	private boolean fills(long h, long key) {
+		return onlyKey(bucket1(h), key) && onlyKey(bucket2(h), key);
+	}
+
+
+	/*
+	 * Lookups for get() and containsKey(): the slot of the table, or else
+	 * the element of the stash, that holds the key, or -1.
+	 */
+
+	final int findSlot(long key) {
+		if (key == emptyKey)
+			return -1;
+		long h = hash(key);
+		int pos = find(bucket1(h), key, false);
+		return pos >= 0 ? pos : find(bucket2(h), key, false);
+	}
+
+	final int findStashed(long key) {
+		return key == emptyKey ? -1 : findStashed(key, false);
+	}
+
+
+	/*
+	 * Method removeCurrent
+	 *
+	 * Removes the current element from the table. A slot freed in buckets
+	 * full of the key takes one of the key's extras, if it has any.
+	 *
+	 * @return successful removal
+	 */
+
+	final boolean removeCurrent() {
+		long key = currentKey();
+		if (key == emptyKey)
+			return false;
+		long h = hash(key);
+		boolean full = extras > 0 && fills(h, key);
+		int pos = find(bucket1(h), key, true);
+		if (pos < 0)
+			pos = find(bucket2(h), key, true);
+		if (pos >= 0) {
+			int i = full ? findExtra(key, false) : -1;
+			if (i >= 0) {
+				loadExtra(i);
+				store(pos);
+				moveExtra(--extras, i);
+			} else {
+				emptySlot(pos);
+			}
+			count--;
+			return true;
+		}
+		pos = findStashed(key, true);
+		if (pos >= 0) {
+			moveStashed(--stashed, pos);
+			count--;
+			return true;
+		}
+		pos = full ? findExtra(key, true) : -1;
+		if (pos < 0)
+			return false;
+		moveExtra(--extras, pos);
+		count--;
+		return true;
+	}
+
+
+	/*
+	 * Method rehash
+	 *
+	 * Regrows the table to capacity 2*old capacity + 1 and reinserts all
+	 * the elements, those in the stash and then the extras last. Should
+	 * the stash fill up
+	 * again on the way, it starts over with a table twice as big again,
+	 * so it never recurses.
+	 */
+
+	private void rehash() {
+		saveTable();
+		int oldStashed = stashed;
+		int oldExtras = extras;
+		int n = count;
+		retry:
+		while (true) {
+			capacity = (capacity * 2) + 1;
+			allocate(capacity * SLOTS);
+			stashed = 0;
+			extras = 0;
+			for (int pos = 0; pos < savedLength(); ++pos) {
+				if (loadSaved(pos) && !insert(hash(currentKey())))
+					continue retry;
+			}
+			for (int i = 0; i < oldStashed; ++i) {
+				loadSavedStashed(i);
+				if (!insert(hash(currentKey())))
+					continue retry;
+			}
+			for (int i = 0; i < oldExtras; ++i) {
+				loadSavedExtra(i);
+				if (!insert(hash(currentKey())))
+					continue retry;
+			}
+			count = n;
+			dropSaved();
+			return;
+		}
+	}
+
+}
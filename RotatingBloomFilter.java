@@ -0,0 +1,205 @@
+/******************************************************************
+ *
+ *   Rotating Bloom filter, a ring of BloomFilter generations that
+ *   remembers elements over a sliding window.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.time.Duration;
+
+
+/**
+ * Rotating Bloom Filters
+ *
+ * A Bloom filter only ever fills up. When one is used to drop duplicate
+ * events from an endless stream, it has to be thrown away and started
+ * afresh from time to time, and at that moment it forgets every element
+ * it has seen: duplicates of recent events slip through until it has
+ * filled up again.
+ *
+ * This class keeps 'N' BloomFilters ("generations") in a ring:
+ *    1) add() always writes into the current generation;
+ *    2) contains() checks all of them;
+ *    3) once the current generation has been written to for a period of
+ *       time, or has received a set number of elements, the oldest
+ *       generation is cleared and becomes the current one.
+ *
+ * Only the oldest 1/N of the remembered elements is forgotten at each
+ * rotation, rather than all of them. An element added is remembered for
+ * at least N - 1 and at most N rotation periods, so the filter acts as a
+ * sliding window of that length, and its memory stays fixed at N
+ * generations.
+ *
+ * An element not in the window is a false positive if any generation
+ * reports it, so each generation is built for a rate of fpp / N, which
+ * keeps the overall rate under 'fpp'. Generations use the DOUBLE_HASHING
+ * scheme, as contains() hashes each key once per generation.
+ *
+ * Rotation is checked on every add() and contains(), so a filter left
+ * idle for longer than N periods is found empty on its next use.
+ */
+
+class RotatingBloomFilter {
+    private final BloomFilter[] generations;    // ring of generations
+    private final long itemsPerGeneration;      // items before rotating
+    private final long periodNanos;             // time before rotating, or 0
+    private int current;                        // generation added to
+    private long currentItems;                  // items added to current
+    private long currentStart;                  // System.nanoTime() of last rotation
+
+
+    /*
+     * Constructors take the number of generations, the number of items
+     * each generation is sized for and the overall false positive rate.
+     * Without a period, the filter rotates each time the current
+     * generation has received 'itemsPerGeneration' items. With a period,
+     * it also rotates once the current generation is that old, whichever
+     * comes first.
+     */
+
+    public RotatingBloomFilter(int generations, long itemsPerGeneration,
+                               double fpp) {
+        this(generations, itemsPerGeneration, fpp, null);
+    }
+
+    public RotatingBloomFilter(int generations, long itemsPerGeneration,
+                               double fpp, Duration period) {
+        if (generations < 2)
+            throw new IllegalArgumentException("Need at least 2 generations");
+        if (period != null && (period.isNegative() || period.isZero()))
+            throw new IllegalArgumentException("Invalid rotation period");
+
+        this.generations = new BloomFilter[generations];
+        for (int i = 0; i < generations; i++) {
+            this.generations[i] = BloomFilter.create(itemsPerGeneration,
+                    fpp / generations, BloomFilter.Layout.STANDARD,
+                    BloomFilter.HashScheme.DOUBLE_HASHING);
+        }
+        this.itemsPerGeneration = itemsPerGeneration;
+        this.periodNanos = period != null ? period.toNanos() : 0;
+        this.currentStart = System.nanoTime();
+    }
+
+    public int generations() { return generations.length; }
+
+
+    /*
+     * Method rotate
+     *
+     * Clears the oldest generation and makes it the current one. Called
+     * automatically on the count and time boundaries, and can also be
+     * called directly, for example from an application's own timer.
+     */
+
+    public void rotate() {
+        current = (current + 1) % generations.length;
+        generations[current].clear();
+        currentItems = 0;
+        currentStart = System.nanoTime();
+    }
+
+    private void rotateIfDue() {
+        if (currentItems >= itemsPerGeneration) {
+            rotate();
+            return;
+        }
+        if (periodNanos == 0)
+            return;
+        long elapsed = System.nanoTime() - currentStart;
+        if (elapsed < periodNanos)
+            return;
+
+        // Rotate once for each full period that has passed, but no more
+        // than once per generation, and keep the periods aligned
+        long periods = Math.min(elapsed / periodNanos, generations.length);
+        long start = currentStart + (elapsed / periodNanos) * periodNanos;
+        for (long i = 0; i < periods; i++)
+            rotate();
+        currentStart = start;
+    }
+
+
+    /*
+     * Method add
+     *
+     * Adds the element to the current generation.
+     *
+     * @param String - the value to add the to set
+     */
+
+    public void add(CharSequence s) {
+        rotateIfDue();
+        generations[current].add(s);
+        currentItems++;
+    }
+
+    public void add(long key) {
+        rotateIfDue();
+        generations[current].add(key);
+        currentItems++;
+    }
+
+
+    /*
+     * Method contains
+     *
+     * Checks the generations newest first, as recent elements are the
+     * most likely to be seen again.
+     *
+     * @param boolean - false if not in the window, else true for most
+     *                  probably in the window
+     */
+
+    public boolean contains(CharSequence s) {
+        rotateIfDue();
+        for (int i = 0, g = current; i < generations.length; i++) {
+            if (generations[g].contains(s))
+                return true;
+            g = (g == 0 ? generations.length : g) - 1;
+        }
+        return false;
+    }
+
+    public boolean contains(long key) {
+        rotateIfDue();
+        for (int i = 0, g = current; i < generations.length; i++) {
+            if (generations[g].contains(key))
+                return true;
+            g = (g == 0 ? generations.length : g) - 1;
+        }
+        return false;
+    }
+
+
+    /*
+     * Method addIfAbsent
+     *
+     * The deduplication step: adds the element if it is not in the window.
+     * An element that is found is not added again, so the window of an
+     * element runs from when it was first added, not from when it was
+     * last seen.
+     *
+     * @param String - the value to add the to set
+     * @return - true if the element was added, false if it is most
+     *           probably a duplicate
+     */
+
+    public boolean addIfAbsent(CharSequence s) {
+        if (contains(s))
+            return false;
+        generations[current].add(s);
+        currentItems++;
+        return true;
+    }
+
+    public boolean addIfAbsent(long key) {
+        if (contains(key))
+            return false;
+        generations[current].add(key);
+        currentItems++;
+        return true;
+    }
+}
@@ -0,0 +1,170 @@
+/******************************************************************
+ *
+ *   Scalable Bloom filter, a chain of BloomFilter stages that grows
+ *   with the number of elements added.
+ *
+ *   Note, additional comments provided throughout source code is
+ *   for educational purposes.
+ *
+ ********************************************************************/
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Scalable Bloom Filters
+ *
+ * A BloomFilter is sized up front for a maximum number of items. If more
+ * items than that are added, its bits fill up and the false positive rate
+ * climbs with no warning. A scalable Bloom filter (Almeida et al.,
+ * "Scalable Bloom Filters") avoids this by chaining filters ("stages"):
+ *    1) Elements are always added to the newest stage.
+ *    2) Once that stage holds as many elements as it was sized for, a new
+ *       stage is added, 'growthFactor' times bigger than the previous one.
+ *    3) contains() checks every stage, and reports the element as present
+ *       if any of them does.
+ *
+ * An element not in the set is a false positive if any stage reports it,
+ * so the overall false positive rate is bounded by the sum of the stages'
+ * rates. To keep that sum under the target 'P' however many stages are
+ * added, stage 'i' is built for a rate of
+ *
+ *      P0 * r^i,   where P0 = P * (1 - r)
+ *
+ * and 'r' is the tightening ratio (0 < r < 1). The series
+ * P0 * (1 + r + r^2 + ...) converges to P.
+ *
+ * The number of hash codes and bits per item of each stage are derived
+ * from its rate. BloomFilter allows at most 8 hash codes, so once a stage
+ * would need more, it instead gets more bits per item to reach its rate.
+ *
+ * Stages of up to 2^30 bits are BloomFilters. A BloomFilter's bit map is
+ * a BitSet indexed by int, so bigger stages are OffHeapBloomFilters
+ * instead, rounded up to a power of two bits, which take the filter up to
+ * the 2^40 bits (128 GB) of a single OffHeapBloomFilter stage. Stages only
+ * ever grow, so the large stages all come after the small ones.
+ */
+
+class ScalableBloomFilter {
+    private static final long MAX_STAGE_BITS = 1L << 30;    // for a BloomFilter
+
+    private final List<BloomFilter> stages = new ArrayList<>();
+    private final List<OffHeapBloomFilter> largeStages = new ArrayList<>();
+    private final double targetFpp;         // overall false positive bound
+    private final double growthFactor;      // capacity growth per stage
+    private final double tighteningRatio;   // error ratio between stages
+    private int stageCapacity;              // capacity of the newest stage
+    private int stageItems;                 // items added to newest stage
+    private double stageFpp;                // rate of the newest stage
+
+
+    /*
+     * Constructors take the number of items the first stage is sized for
+     * and the overall false positive rate to stay under, optionally with
+     * the growth factor (default 2) and tightening ratio (default 0.5).
+     */
+
+    public ScalableBloomFilter(int initialCapacity, double targetFpp) {
+        this(initialCapacity, targetFpp, 2, 0.5);
+    }
+
+    public ScalableBloomFilter(int initialCapacity, double targetFpp,
+                               double growthFactor, double tighteningRatio) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException("Invalid initial capacity");
+        if (!(targetFpp > 0 && targetFpp < 1))
+            throw new IllegalArgumentException("Invalid false positive rate");
+        if (!(growthFactor >= 1))
+            throw new IllegalArgumentException("Invalid growth factor");
+        if (!(tighteningRatio > 0 && tighteningRatio < 1))
+            throw new IllegalArgumentException("Invalid tightening ratio");
+
+        this.targetFpp = targetFpp;
+        this.growthFactor = growthFactor;
+        this.tighteningRatio = tighteningRatio;
+        this.stageCapacity = initialCapacity;
+        this.stageFpp = targetFpp * (1 - tighteningRatio);
+        addStage(stageCapacity, stageFpp);
+    }
+
+
+    /*
+     * Method addStage
+     *
+     * Adds a stage for 'capacity' items at a false positive rate of
+     * 'fpp'. With 'k' hash codes and 'b' bits per item, a filter filled
+     * to capacity has a false positive rate of about (1 - e^(-k/b))^k.
+     * The optimal 'k' is log2(1/fpp); for a given 'k' solving for 'b'
+     * gives b = -k / ln(1 - fpp^(1/k)).
+     */
+
+    private void addStage(int capacity, double fpp) {
+        int noHashes = (int) Math.ceil(-Math.log(fpp) / Math.log(2));
+        noHashes = Math.max(1, Math.min(BloomFilter.MAX_HASHES, noHashes));
+        double bits = -noHashes / Math.log(1 - Math.pow(fpp, 1.0 / noHashes));
+        int bitsPerItem = (int) Math.ceil(bits);
+        long noBits = (long) capacity * bitsPerItem;
+        if (noBits <= MAX_STAGE_BITS) {
+            stages.add(new BloomFilter(capacity, bitsPerItem, noHashes,
+                    BloomFilter.Layout.STANDARD, BloomFilter.HashScheme.DOUBLE_HASHING));
+            return;
+        }
+        int log2noBits = 64 - Long.numberOfLeadingZeros(noBits - 1);
+        if (log2noBits > OffHeapBloomFilter.MAX_LOG2_BITS)
+            throw new IllegalStateException("Scalable Bloom filter is full");
+        largeStages.add(new OffHeapBloomFilter(log2noBits, noHashes,
+                BloomFilter.HashScheme.DOUBLE_HASHING));
+    }
+
+
+    /*
+     * Method add
+     *
+     * Adds the String to the newest stage, first adding a new stage if the
+     * newest one is full.
+     *
+     * @param String - the value to add the to set
+     */
+
+    public void add(String s) {
+        if (stageItems >= stageCapacity) {
+            stageCapacity = (int) Math.min(Integer.MAX_VALUE,
+                    Math.ceil(stageCapacity * growthFactor));
+            stageFpp *= tighteningRatio;
+            addStage(stageCapacity, stageFpp);
+            stageItems = 0;
+        }
+        if (largeStages.isEmpty())
+            stages.get(stages.size() - 1).add(s);
+        else
+            largeStages.get(largeStages.size() - 1).add(s);
+        stageItems++;
+    }
+
+
+    /*
+     * Method contains
+     *
+     * Checks the stages newest first; with geometric growth the newest
+     * stage holds about half of the elements, so members are found sooner.
+     *
+     * @param boolean - false if not in set, else true for most probably in set
+     */
+
+    public boolean contains(String s) {
+        for (int i = largeStages.size() - 1; i >= 0; i--) {
+            if (largeStages.get(i).contains(s))
+                return true;
+        }
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (stages.get(i).contains(s))
+                return true;
+        }
+        return false;
+    }
+
+    public int stageCount() { return stages.size() + largeStages.size(); }
+
+    public double targetFpp() { return targetFpp; }
+}